@@ -24,5 +24,12 @@ public class MessageConstant {
     public static final String DISH_BE_RELATED_BY_SETMEAL = "当前菜品关联了套餐,不能删除";
     public static final String ORDER_STATUS_ERROR = "订单状态错误";
     public static final String ORDER_NOT_FOUND = "订单不存在";
+    public static final String PRODUCT_NOT_ON_SALE = "商品不存在或已停售，不能加入购物车";
+    public static final String ORDER_TOKEN_INVALID = "下单令牌无效或已过期，请重新下单";
+    public static final String ORDER_SUBMITTING = "订单正在提交，请勿重复提交";
+    public static final String ORDER_PRODUCT_NOT_ON_SALE = "购物车中有已停售的商品，请移除后重新下单";
+    public static final String ORDER_AMOUNT_ERROR = "订单金额有误，请刷新后重新下单";
+    public static final String ORDER_PRICE_CHANGED = "商品价格已调整，请刷新购物车后重新下单";
+    public static final String REPORT_DATE_RANGE_INVALID = "开始日期不能晚于结束日期";
 
 }
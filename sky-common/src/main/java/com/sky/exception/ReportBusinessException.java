@@ -0,0 +1,9 @@
+package com.sky.exception;
+
+public class ReportBusinessException extends BaseException {
+
+    public ReportBusinessException(String msg) {
+        super(msg);
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.sky.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "sky.menu-cache")
+@Data
+public class MenuCacheProperties {
+
+    /**
+     * 每个节点本地缓存的最大条目数
+     */
+    private long localMaximumSize = 1000;
+
+    /**
+     * 本地缓存写入后的过期时间（秒），同时也是收不到失效消息时本地数据最长的陈旧时间
+     */
+    private long localExpireSeconds = 300;
+
+    /**
+     * 集群内广播缓存失效消息的redis频道
+     */
+    private String invalidationChannel = "menu_cache_invalidation";
+
+    /**
+     * redis中菜品缓存的过期时间（秒）
+     */
+    private long redisExpireSeconds = 3600;
+
+    /**
+     * 缓存未命中时是否使用redis锁，保证集群内只有一个节点查询数据库
+     */
+    private boolean distributedLock = true;
+
+    /**
+     * 加载锁的租期（毫秒），持有锁的节点宕机时最多阻塞其他节点这么久
+     */
+    private long lockLeaseMillis = 3000;
+
+    /**
+     * 没抢到锁的节点等待缓存写入的最长时间（毫秒），超时后自己查询数据库
+     */
+    private long lockWaitMillis = 2000;
+
+    /**
+     * 提前刷新的系数，越大越早刷新，0表示不提前刷新
+     */
+    private double earlyRefreshBeta = 1.0;
+
+    /**
+     * 商品快照缓存的最大条目数
+     */
+    private long productMaximumSize = 5000;
+
+    /**
+     * 商品快照缓存写入后的过期时间（秒）
+     */
+    private long productExpireSeconds = 600;
+
+}
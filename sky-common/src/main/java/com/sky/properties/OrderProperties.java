@@ -0,0 +1,34 @@
+package com.sky.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+
+@Component
+@ConfigurationProperties(prefix = "sky.order")
+@Data
+public class OrderProperties {
+
+    /**
+     * 每份菜品或套餐的打包费（元），与小程序的计算方式保持一致
+     */
+    private int packFee = 1;
+
+    /**
+     * 每单的配送费（元）
+     */
+    private BigDecimal deliveryFee = new BigDecimal(6);
+
+    /**
+     * 下单后超过这个时间（分钟）未支付自动取消
+     */
+    private long payTimeoutMinutes = 15;
+
+    /**
+     * 催单合并的时间窗口（秒），同一个订单在窗口内的多次催单只推送一次
+     */
+    private long remindWindowSeconds = 10;
+
+}
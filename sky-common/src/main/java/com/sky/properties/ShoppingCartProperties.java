@@ -0,0 +1,32 @@
+package com.sky.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "sky.shopping-cart")
+@Data
+public class ShoppingCartProperties {
+
+    /**
+     * 是否把购物车保存在redis中并异步写回数据库，关闭时直接读写数据库
+     */
+    private boolean redisEnabled = true;
+
+    /**
+     * redis中购物车的过期时间（天），每次修改购物车时重新计时
+     */
+    private long expireDays = 7;
+
+    /**
+     * 写回数据库的间隔（毫秒）
+     */
+    private long flushIntervalMillis = 5000;
+
+    /**
+     * 每批写回的用户数
+     */
+    private int flushBatchSize = 100;
+
+}
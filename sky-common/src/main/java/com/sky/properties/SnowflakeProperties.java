@@ -0,0 +1,32 @@
+package com.sky.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "sky.snowflake")
+@Data
+public class SnowflakeProperties {
+
+    /**
+     * 节点id，取值0~1023，集群内每个节点必须不同；不配置时启动时从redis租用一个空闲的id
+     */
+    private Long workerId;
+
+    /**
+     * 租用节点id的租期（秒），节点每10秒续期一次，宕机后租期结束id才能被其他节点使用
+     */
+    private long workerLeaseSeconds = 600;
+
+    /**
+     * 起始时间（毫秒时间戳），上线后不能修改，默认为北京时间2024-01-01 00:00:00
+     */
+    private long epoch = 1704038400000L;
+
+    /**
+     * 允许的时钟回拨（毫秒），回拨不超过这个值时沿用上一次的时间戳继续生成
+     */
+    private long maxBackwardMillis = 5000;
+
+}
@@ -0,0 +1,47 @@
+package com.sky.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "sky.websocket")
+@Data
+public class WebSocketProperties {
+
+    /**
+     * 集群内广播WebSocket消息的redis频道
+     */
+    private String broadcastChannel = "websocket_broadcast";
+
+    /**
+     * 合并发布的时间窗口（毫秒），窗口内的消息合并为一次发布
+     */
+    private long batchIntervalMillis = 100;
+
+    /**
+     * 每次发布最多合并的消息数
+     */
+    private int batchSize = 100;
+
+    /**
+     * 服务端发送心跳的间隔（毫秒）
+     */
+    private long heartbeatIntervalMillis = 30000;
+
+    /**
+     * 超过这个时间（毫秒）没有收到心跳响应或消息的连接会被清理
+     */
+    private long idleTimeoutMillis = 90000;
+
+    /**
+     * 保存最近多少条订单消息，用于断线重连后补发
+     */
+    private int replayCapacity = 1000;
+
+    /**
+     * 订单消息乱序到达时等待缺失序号的最长时间（毫秒），超时视为丢失
+     */
+    private long gapWaitMillis = 1000;
+
+}
@@ -0,0 +1,76 @@
+package com.sky.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法id生成器：41位毫秒时间戳 + 10位节点id + 12位序号，每个节点每毫秒最多生成4096个id
+ * 上一次的时间戳和序号保存在一个AtomicLong中，通过CAS更新，不需要加锁
+ */
+public class SnowflakeIdGenerator {
+
+    private static final long WORKER_ID_BITS = 10L;
+    private static final long SEQUENCE_BITS = 12L;
+
+    public static final long MAX_WORKER_ID = ~(-1L << WORKER_ID_BITS);
+    private static final long SEQUENCE_MASK = ~(-1L << SEQUENCE_BITS);
+
+    private static final long WORKER_ID_SHIFT = SEQUENCE_BITS;
+    private static final long TIMESTAMP_SHIFT = SEQUENCE_BITS + WORKER_ID_BITS;
+
+    private final long workerId;
+    private final long epoch;
+    private final long maxBackwardMillis;
+
+    //高位为上一次使用的时间戳（相对于epoch），低12位为该毫秒内已经使用的序号
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdGenerator(long workerId, long epoch, long maxBackwardMillis) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId必须在0~" + MAX_WORKER_ID + "之间：" + workerId);
+        }
+        if (epoch > System.currentTimeMillis()) {
+            throw new IllegalArgumentException("epoch不能晚于当前时间：" + epoch);
+        }
+        this.workerId = workerId;
+        this.epoch = epoch;
+        this.maxBackwardMillis = maxBackwardMillis;
+    }
+
+    /**
+     * 生成下一个id
+     * @return
+     */
+    public long nextId() {
+        while (true) {
+            long current = state.get();
+            long lastTimestamp = current >>> SEQUENCE_BITS;
+            long sequence = current & SEQUENCE_MASK;
+            long now = System.currentTimeMillis() - epoch;
+
+            long timestamp;
+            long nextSequence;
+            if (now > lastTimestamp) {
+                //进入新的一毫秒，序号从0开始
+                timestamp = now;
+                nextSequence = 0;
+            } else {
+                //同一毫秒内，或者时钟回拨在允许范围内，沿用上一次的时间戳
+                long backward = lastTimestamp - now;
+                if (backward > maxBackwardMillis) {
+                    throw new IllegalStateException("系统时钟回拨" + backward + "ms，拒绝生成id");
+                }
+                if (sequence == SEQUENCE_MASK) {
+                    //这一毫秒的序号已经用完，等待时钟前进
+                    Thread.yield();
+                    continue;
+                }
+                timestamp = lastTimestamp;
+                nextSequence = sequence + 1;
+            }
+
+            if (state.compareAndSet(current, (timestamp << SEQUENCE_BITS) | nextSequence)) {
+                return (timestamp << TIMESTAMP_SHIFT) | (workerId << WORKER_ID_SHIFT) | nextSequence;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.sky.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * 按天聚合的统计数据
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class DailyStatisticsDTO implements Serializable {
+    //日期
+    private LocalDate date;
+
+    //订单数
+    private Integer orderCount;
+
+    //有效订单数
+    private Integer validOrderCount;
+
+    //营业额
+    private Double turnover;
+
+    //新增用户数
+    private Integer newUsers;
+
+    /**
+     * 某一天没有任何数据时，用0填充
+     * @param date
+     * @return
+     */
+    public static DailyStatisticsDTO empty(LocalDate date) {
+        return new DailyStatisticsDTO(date, 0, 0, 0.0, 0);
+    }
+}
@@ -26,6 +26,8 @@ public class OrdersSubmitDTO implements Serializable {
     private Integer tablewareStatus;
     //打包费
     private Integer packAmount;
-    //总金额
+    //总金额，必填，服务端按当前价格核对
     private BigDecimal amount;
+    //下单令牌，同一个令牌重复提交时返回第一次的结果
+    private String token;
 }
@@ -0,0 +1,26 @@
+package com.sky.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * 当前节点的WebSocket连接数据
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WebSocketStatsVO implements Serializable {
+    //在线连接数
+    private Integer onlineCount;
+
+    //累计发送失败次数
+    private Long sendFailureCount;
+
+    //累计清理的连接数
+    private Long reapedCount;
+}
@@ -0,0 +1,40 @@
+package com.sky.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 监听缓存失效频道，删除本节点对应的本地缓存
+ */
+@Component
+@Slf4j
+public class CacheInvalidationListener implements MessageListener {
+
+    @Autowired
+    private DishCache dishCache;
+    @Autowired
+    private ProductCache productCache;
+    @Autowired
+    private TwoLevelCacheManager cacheManager;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String cacheName = CacheInvalidationPublisher.cacheNameOf(body);
+        String key = CacheInvalidationPublisher.keyOf(body);
+        log.debug("收到缓存失效消息：{}, {}", cacheName, key);
+
+        if (DishCache.CACHE_NAME.equals(cacheName)) {
+            dishCache.evictLocal(key);
+        } else if (ProductCache.CACHE_NAME.equals(cacheName)) {
+            productCache.evictLocal(key);
+        } else {
+            cacheManager.evictLocal(cacheName, key);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.sky.cache;
+
+import com.sky.properties.MenuCacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 通过redis频道向集群内所有节点广播本地缓存失效消息
+ * 消息格式：缓存名称:key，key为*时表示清空整个缓存
+ */
+@Component
+@Slf4j
+public class CacheInvalidationPublisher {
+
+    public static final String ALL_KEYS = "*";
+
+    private static final String SEPARATOR = ":";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private MenuCacheProperties menuCacheProperties;
+
+    /**
+     * 广播某个key失效
+     * @param cacheName
+     * @param key
+     */
+    public void publish(String cacheName, String key) {
+        try {
+            stringRedisTemplate.convertAndSend(menuCacheProperties.getInvalidationChannel(), cacheName + SEPARATOR + key);
+        } catch (Exception e) {
+            //广播失败时其他节点的本地缓存会在过期后自然失效
+            log.error("广播缓存失效消息失败：{}, {}", cacheName, key, e);
+        }
+    }
+
+    /**
+     * 广播整个缓存失效
+     * @param cacheName
+     */
+    public void publishClear(String cacheName) {
+        publish(cacheName, ALL_KEYS);
+    }
+
+    /**
+     * 解析消息中的缓存名称
+     * @param message
+     * @return
+     */
+    static String cacheNameOf(String message) {
+        int index = message.indexOf(SEPARATOR);
+        return index < 0 ? message : message.substring(0, index);
+    }
+
+    /**
+     * 解析消息中的key
+     * @param message
+     * @return
+     */
+    static String keyOf(String message) {
+        int index = message.indexOf(SEPARATOR);
+        return index < 0 ? ALL_KEYS : message.substring(index + 1);
+    }
+}
@@ -0,0 +1,62 @@
+package com.sky.cache;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import com.sky.json.JacksonObjectMapper;
+import org.springframework.cache.support.NullValue;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * redis value序列化器：写入时使用带类型信息的json，读取时兼容升级前用jdk序列化写入的数据
+ * jdk序列化的数据以魔数 0xACED 开头，json数据不会以这两个字节开头
+ */
+public class CompatibleRedisSerializer implements RedisSerializer<Object> {
+
+    private static final byte JDK_MAGIC_0 = (byte) 0xAC;
+    private static final byte JDK_MAGIC_1 = (byte) 0xED;
+
+    private final GenericJackson2JsonRedisSerializer jsonSerializer;
+    private final JdkSerializationRedisSerializer jdkSerializer;
+
+    public CompatibleRedisSerializer() {
+        this.jsonSerializer = new GenericJackson2JsonRedisSerializer(createObjectMapper());
+        this.jdkSerializer = new JdkSerializationRedisSerializer(getClass().getClassLoader());
+    }
+
+    /**
+     * 基于项目的JacksonObjectMapper，开启类型信息，只允许反序列化项目和jdk中的类
+     * @return
+     */
+    private static ObjectMapper createObjectMapper() {
+        ObjectMapper objectMapper = new JacksonObjectMapper();
+        BasicPolymorphicTypeValidator validator = BasicPolymorphicTypeValidator.builder()
+                .allowIfSubType("com.sky.")
+                .allowIfSubType("java.")
+                .allowIfSubType(NullValue.class)
+                .build();
+        objectMapper.activateDefaultTyping(validator, ObjectMapper.DefaultTyping.NON_FINAL, JsonTypeInfo.As.PROPERTY);
+        //spring缓存允许缓存null值，需要能够序列化NullValue
+        GenericJackson2JsonRedisSerializer.registerNullValueSerializer(objectMapper, null);
+        return objectMapper;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        return jsonSerializer.serialize(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes.length > 1 && bytes[0] == JDK_MAGIC_0 && bytes[1] == JDK_MAGIC_1) {
+            return jdkSerializer.deserialize(bytes);
+        }
+        return jsonSerializer.deserialize(bytes);
+    }
+}
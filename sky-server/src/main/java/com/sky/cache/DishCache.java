@@ -0,0 +1,435 @@
+package com.sky.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sky.properties.MenuCacheProperties;
+import com.sky.vo.DishVO;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * 菜品缓存：一级为节点内的caffeine缓存，二级为redis中以 dish_分类id 为key的缓存
+ * redis中所有菜品缓存的key记录在 dish_keys 集合中，清理时只删除集合里的key，不需要扫描整个keyspace；
+ * 写入、删除缓存和登记、移除key都在同一个lua脚本中完成，集合中的key和实际存在的缓存始终一致
+ *
+ * 缓存未命中时，同一节点内同一个key只有一个线程查询数据库，其他线程等待它的结果；
+ * 开启分布式锁时，集群内同一个key也只有一个节点查询数据库，其他节点等待它写入redis。
+ * 缓存临近过期时按概率提前在后台刷新（XFetch），避免大量请求在过期的瞬间同时未命中。
+ */
+@Component
+@Slf4j
+public class DishCache {
+
+    public static final String CACHE_NAME = "dish";
+
+    private static final String KEY_PREFIX = "dish_";
+
+    private static final String KEY_SET = "dish_keys";
+
+    //锁的key不能以dish_开头，否则启动时会被当成缓存key登记
+    private static final String LOCK_PREFIX = "lock:dish_";
+
+    private static final long SCAN_COUNT = 100;
+
+    //等待其他节点加载时，轮询redis的间隔
+    private static final long LOCK_RETRY_MILLIS = 50;
+
+    //从redis读取的数据不知道加载耗时，按这个值估算提前刷新的时间窗口
+    private static final long DEFAULT_LOAD_MILLIS = 200;
+
+    //只有持有锁的客户端才能释放锁
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    //登记key并写入缓存，ARGV[1]为序列化后的缓存值，ARGV[2]为过期毫秒数
+    private static final DefaultRedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('sadd', KEYS[2], KEYS[1]) " +
+            "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "return 1",
+            Long.class);
+
+    //删除缓存并移除登记的key
+    private static final DefaultRedisScript<Long> EVICT_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('del', KEYS[1]) " +
+            "return redis.call('srem', KEYS[2], KEYS[1])",
+            Long.class);
+
+    //删除集合中登记的所有缓存和集合本身，脚本执行期间不会有新的key写入
+    private static final DefaultRedisScript<Long> EVICT_ALL_SCRIPT = new DefaultRedisScript<>(
+            "local keys = redis.call('smembers', KEYS[1]) " +
+            "for i = 1, #keys, 500 do " +
+            "redis.call('del', unpack(keys, i, math.min(i + 499, #keys))) " +
+            "end " +
+            "redis.call('del', KEYS[1]) " +
+            "return #keys",
+            Long.class);
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private CacheInvalidationPublisher publisher;
+    @Autowired
+    private MenuCacheProperties menuCacheProperties;
+
+    private Cache<String, CachedDishes> localCache;
+
+    //本节点正在加载的key
+    private final ConcurrentMap<String, CompletableFuture<List<DishVO>>> loading = new ConcurrentHashMap<>();
+
+    //本节点正在后台刷新的key
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService refreshExecutor;
+
+    @PostConstruct
+    public void init() {
+        localCache = Caffeine.newBuilder()
+                .maximumSize(menuCacheProperties.getLocalMaximumSize())
+                .expireAfterWrite(menuCacheProperties.getLocalExpireSeconds(), TimeUnit.SECONDS)
+                .build();
+
+        //后台刷新只是优化，队列满时直接丢弃，由下一次请求再触发
+        refreshExecutor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(100),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "dish-cache-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+
+        registerExistingKeys();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        refreshExecutor.shutdown();
+    }
+
+    /**
+     * 把升级前已经写入redis、还没有记录在集合中的菜品缓存key登记到集合里
+     * 只在启动时执行一次，使用SCAN分批遍历，不会阻塞redis
+     */
+    private void registerExistingKeys() {
+        try {
+            Set<String> keys = stringRedisTemplate.execute((RedisCallback<Set<String>>) connection -> {
+                Set<String> result = new HashSet<>();
+                ScanOptions options = ScanOptions.scanOptions().match(KEY_PREFIX + "*").count(SCAN_COUNT).build();
+                try (Cursor<byte[]> cursor = connection.scan(options)) {
+                    while (cursor.hasNext()) {
+                        result.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                    }
+                }
+                return result;
+            });
+            if (keys != null) {
+                keys.remove(KEY_SET);
+            }
+            if (keys != null && !keys.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(KEY_SET, keys.toArray(new String[0]));
+            }
+        } catch (Exception e) {
+            log.error("登记已有的菜品缓存key失败", e);
+        }
+    }
+
+    /**
+     * 根据分类id查询菜品，先查本地再查redis，都未命中时通过loader查询数据库并写入缓存
+     * @param categoryId
+     * @param loader
+     * @return
+     */
+    public List<DishVO> get(Long categoryId, Supplier<List<DishVO>> loader) {
+        String key = KEY_PREFIX + categoryId;
+
+        CachedDishes cached = localCache.getIfPresent(key);
+        if (cached != null && cached.isExpired()) {
+            localCache.invalidate(key);
+            cached = null;
+        }
+        if (cached == null) {
+            cached = getFromRedis(key);
+            if (cached != null) {
+                localCache.put(key, cached);
+            }
+        }
+
+        if (cached != null) {
+            if (shouldRefreshEarly(cached)) {
+                refreshAsync(categoryId, loader);
+            }
+            return cached.getList();
+        }
+
+        return loadSingleFlight(categoryId, loader);
+    }
+
+    /**
+     * 缓存某个分类下的菜品
+     * @param categoryId
+     * @param list
+     */
+    public void put(Long categoryId, List<DishVO> list) {
+        put(categoryId, list, DEFAULT_LOAD_MILLIS);
+    }
+
+    private void put(Long categoryId, List<DishVO> list, long loadMillis) {
+        String key = KEY_PREFIX + categoryId;
+        long ttlMillis = TimeUnit.SECONDS.toMillis(menuCacheProperties.getRedisExpireSeconds());
+        byte[] value = redisTemplate.getValueSerializer().serialize(list);
+        stringRedisTemplate.execute(PUT_SCRIPT, RedisSerializer.byteArray(), new GenericToStringSerializer<>(Long.class),
+                Arrays.asList(key, KEY_SET), value, String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8));
+        localCache.put(key, new CachedDishes(list, System.currentTimeMillis() + ttlMillis, loadMillis));
+    }
+
+    /**
+     * 删除某个分类的菜品缓存，并通知其他节点
+     * @param categoryId
+     */
+    public void evict(Long categoryId) {
+        String key = KEY_PREFIX + categoryId;
+        stringRedisTemplate.execute(EVICT_SCRIPT, Arrays.asList(key, KEY_SET));
+        localCache.invalidate(key);
+        publisher.publish(CACHE_NAME, key);
+    }
+
+    /**
+     * 删除所有分类的菜品缓存，并通知其他节点
+     */
+    public void evictAll() {
+        stringRedisTemplate.execute(EVICT_ALL_SCRIPT, Collections.singletonList(KEY_SET));
+        localCache.invalidateAll();
+        publisher.publishClear(CACHE_NAME);
+    }
+
+    /**
+     * 收到失效消息时只删除本节点的本地缓存
+     * @param key
+     */
+    public void evictLocal(String key) {
+        if (CacheInvalidationPublisher.ALL_KEYS.equals(key)) {
+            localCache.invalidateAll();
+        } else {
+            localCache.invalidate(key);
+        }
+    }
+
+    /**
+     * 读取redis中的菜品缓存和剩余过期时间
+     * @param key
+     * @return
+     */
+    private CachedDishes getFromRedis(String key) {
+        List<DishVO> list = (List<DishVO>) redisTemplate.opsForValue().get(key);
+        if (list == null) {
+            return null;
+        }
+        Long ttlMillis = redisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+        //升级前写入的key没有过期时间，不参与提前刷新
+        long expireAt = ttlMillis == null || ttlMillis == -1 ? Long.MAX_VALUE : System.currentTimeMillis() + Math.max(ttlMillis, 0);
+        return new CachedDishes(list, expireAt, DEFAULT_LOAD_MILLIS);
+    }
+
+    /**
+     * 同一节点内同一个key只允许一个线程加载，其他线程等待同一个结果
+     * @param categoryId
+     * @param loader
+     * @return
+     */
+    private List<DishVO> loadSingleFlight(Long categoryId, Supplier<List<DishVO>> loader) {
+        String key = KEY_PREFIX + categoryId;
+        CompletableFuture<List<DishVO>> future = new CompletableFuture<>();
+        CompletableFuture<List<DishVO>> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            List<DishVO> list = loadWithLock(categoryId, loader);
+            future.complete(list);
+            return list;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * 集群内同一个key只允许一个节点查询数据库，没抢到锁的节点轮询redis等待结果，超时后自己查询
+     * @param categoryId
+     * @param loader
+     * @return
+     */
+    private List<DishVO> loadWithLock(Long categoryId, Supplier<List<DishVO>> loader) {
+        String key = KEY_PREFIX + categoryId;
+
+        String token = tryLock(categoryId);
+        if (token != null) {
+            try {
+                //抢到锁之前其他节点可能已经写好了缓存
+                CachedDishes cached = getFromRedis(key);
+                if (cached != null) {
+                    localCache.put(key, cached);
+                    return cached.getList();
+                }
+                return loadAndPut(categoryId, loader);
+            } finally {
+                unlock(categoryId, token);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + menuCacheProperties.getLockWaitMillis();
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            CachedDishes cached = getFromRedis(key);
+            if (cached != null) {
+                localCache.put(key, cached);
+                return cached.getList();
+            }
+        }
+
+        log.warn("等待其他节点加载菜品缓存超时，直接查询数据库：{}", key);
+        return loadAndPut(categoryId, loader);
+    }
+
+    /**
+     * 查询数据库并写入缓存，记录加载耗时用于计算提前刷新的时间窗口
+     * @param categoryId
+     * @param loader
+     * @return
+     */
+    private List<DishVO> loadAndPut(Long categoryId, Supplier<List<DishVO>> loader) {
+        long start = System.currentTimeMillis();
+        List<DishVO> list = loader.get();
+        put(categoryId, list, System.currentTimeMillis() - start);
+        return list;
+    }
+
+    /**
+     * XFetch：剩余时间越接近过期、加载耗时越长，提前刷新的概率越大
+     * @param cached
+     * @return
+     */
+    private boolean shouldRefreshEarly(CachedDishes cached) {
+        if (cached.getExpireAt() == Long.MAX_VALUE) {
+            return false;
+        }
+        double gap = -cached.getLoadMillis() * menuCacheProperties.getEarlyRefreshBeta()
+                * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= cached.getExpireAt();
+    }
+
+    /**
+     * 在后台刷新缓存，当前请求直接返回旧数据
+     * @param categoryId
+     * @param loader
+     */
+    private void refreshAsync(Long categoryId, Supplier<List<DishVO>> loader) {
+        String key = KEY_PREFIX + categoryId;
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    String token = tryLock(categoryId);
+                    if (token == null) {
+                        //其他节点正在刷新
+                        return;
+                    }
+                    try {
+                        loadAndPut(categoryId, loader);
+                    } finally {
+                        unlock(categoryId, token);
+                    }
+                } catch (Exception e) {
+                    log.error("后台刷新菜品缓存失败：{}", key, e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * 尝试获取加载锁，锁会在租期结束后自动释放，防止持有锁的节点宕机后其他节点一直等待
+     * @param categoryId
+     * @return 获取成功返回锁的token，失败返回null；未开启分布式锁时总是成功
+     */
+    private String tryLock(Long categoryId) {
+        String token = UUID.randomUUID().toString();
+        if (!menuCacheProperties.isDistributedLock()) {
+            return token;
+        }
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_PREFIX + categoryId, token,
+                menuCacheProperties.getLockLeaseMillis(), TimeUnit.MILLISECONDS);
+        return Boolean.TRUE.equals(locked) ? token : null;
+    }
+
+    private void unlock(Long categoryId, String token) {
+        if (!menuCacheProperties.isDistributedLock()) {
+            return;
+        }
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(LOCK_PREFIX + categoryId), token);
+    }
+
+    /**
+     * 本地缓存的菜品数据，以及对应redis key的过期时间和加载耗时
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class CachedDishes {
+
+        private final List<DishVO> list;
+
+        private final long expireAt;
+
+        private final long loadMillis;
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expireAt;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.sky.cache;
+
+import com.sky.constant.StatusConstant;
+import com.sky.entity.Category;
+import com.sky.entity.Dish;
+import com.sky.entity.Setmeal;
+import com.sky.result.Result;
+import com.sky.service.CategoryService;
+import com.sky.service.DishService;
+import com.sky.service.SetmealService;
+import com.sky.vo.DishVO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * 菜单缓存预热：启动完成后、以及管理端修改菜品/套餐/分类后，为所有启用的分类重建
+ * dish_分类id 和 setmealCache::分类id 缓存，让用户请求到来时缓存已经是热的
+ */
+@Component
+@Slf4j
+public class MenuCacheWarmer {
+
+    //分类类型 1菜品分类 2套餐分类
+    private static final Integer DISH_CATEGORY = 1;
+    private static final Integer SETMEAL_CATEGORY = 2;
+
+    private static final String SETMEAL_CACHE = "setmealCache";
+
+    //管理端连续修改时合并为一次预热，同时保证在@CacheEvict清理之后再执行
+    private static final long DEBOUNCE_MILLIS = 1000;
+
+    @Autowired
+    private CategoryService categoryService;
+    @Autowired
+    private DishService dishService;
+    @Autowired
+    private SetmealService setmealService;
+    @Autowired
+    private DishCache dishCache;
+    @Autowired
+    private CacheManager cacheManager;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "menu-cache-warmer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 应用启动完成后预热
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        warm();
+    }
+
+    /**
+     * 异步预热，短时间内多次调用只执行一次
+     */
+    public void warmAsync() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(() -> {
+                scheduled.set(false);
+                warm();
+            }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 一次查出所有起售的菜品和套餐，按分类分组后写入缓存
+     */
+    public void warm() {
+        long start = System.currentTimeMillis();
+        try {
+            //菜品：一次查询起售菜品，一次查询这些菜品的口味
+            Dish dish = Dish.builder()
+                    .status(StatusConstant.ENABLE)
+                    .build();
+            Map<Long, List<DishVO>> dishMap = dishService.listWithFlavor(dish).stream()
+                    .collect(Collectors.groupingBy(DishVO::getCategoryId));
+
+            List<Category> dishCategories = categoryService.list(DISH_CATEGORY);
+            for (Category category : dishCategories) {
+                dishCache.put(category.getId(), dishMap.getOrDefault(category.getId(), new ArrayList<>()));
+            }
+
+            //套餐：一次查询起售套餐
+            Map<Long, List<Setmeal>> setmealMap = setmealService.list(new Setmeal()).stream()
+                    .collect(Collectors.groupingBy(Setmeal::getCategoryId));
+
+            Cache setmealCache = cacheManager.getCache(SETMEAL_CACHE);
+            List<Category> setmealCategories = categoryService.list(SETMEAL_CATEGORY);
+            for (Category category : setmealCategories) {
+                //与用户端SetmealController.list缓存的返回值保持一致
+                setmealCache.put(category.getId(), Result.success(setmealMap.getOrDefault(category.getId(), new ArrayList<>())));
+            }
+
+            log.info("菜单缓存预热完成，菜品分类{}个，套餐分类{}个，耗时{}ms",
+                    dishCategories.size(), setmealCategories.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            //预热失败不影响业务，用户请求时会按需加载
+            log.error("菜单缓存预热失败", e);
+        }
+    }
+}
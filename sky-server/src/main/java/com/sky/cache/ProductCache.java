@@ -0,0 +1,143 @@
+package com.sky.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sky.constant.StatusConstant;
+import com.sky.entity.Dish;
+import com.sky.entity.Setmeal;
+import com.sky.mapper.DishMapper;
+import com.sky.mapper.SetmealMapper;
+import com.sky.properties.MenuCacheProperties;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 商品快照缓存：节点内缓存菜品和套餐的名称、图片、单价和售卖状态，加入购物车时不再查询数据库
+ * key为 dish:菜品id 或 setmeal:套餐id，管理端修改菜品或套餐时删除，并通知其他节点
+ */
+@Component
+public class ProductCache {
+
+    public static final String CACHE_NAME = "product";
+
+    private static final String DISH_PREFIX = "dish:";
+
+    private static final String SETMEAL_PREFIX = "setmeal:";
+
+    @Autowired
+    private DishMapper dishMapper;
+    @Autowired
+    private SetmealMapper setmealMapper;
+    @Autowired
+    private CacheInvalidationPublisher publisher;
+    @Autowired
+    private MenuCacheProperties menuCacheProperties;
+
+    private Cache<String, ProductSnapshot> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(menuCacheProperties.getProductMaximumSize())
+                .expireAfterWrite(menuCacheProperties.getProductExpireSeconds(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 查询菜品快照
+     * @param dishId
+     * @return 菜品不存在时返回null
+     */
+    public ProductSnapshot getDish(Long dishId) {
+        return cache.get(DISH_PREFIX + dishId, key -> {
+            Dish dish = dishMapper.getById(dishId);
+            return dish == null ? null
+                    : new ProductSnapshot(dish.getName(), dish.getImage(), dish.getPrice(), dish.getStatus());
+        });
+    }
+
+    /**
+     * 查询套餐快照
+     * @param setmealId
+     * @return 套餐不存在时返回null
+     */
+    public ProductSnapshot getSetmeal(Long setmealId) {
+        return cache.get(SETMEAL_PREFIX + setmealId, key -> {
+            Setmeal setmeal = setmealMapper.getById(setmealId);
+            return setmeal == null ? null
+                    : new ProductSnapshot(setmeal.getName(), setmeal.getImage(), setmeal.getPrice(), setmeal.getStatus());
+        });
+    }
+
+    /**
+     * 删除菜品快照，并通知其他节点
+     * @param dishIds
+     */
+    public void evictDishes(List<Long> dishIds) {
+        for (Long dishId : dishIds) {
+            evict(DISH_PREFIX + dishId);
+        }
+    }
+
+    /**
+     * 删除套餐快照，并通知其他节点
+     * @param setmealIds
+     */
+    public void evictSetmeals(List<Long> setmealIds) {
+        for (Long setmealId : setmealIds) {
+            evict(SETMEAL_PREFIX + setmealId);
+        }
+    }
+
+    /**
+     * 删除所有快照，并通知其他节点
+     */
+    public void evictAll() {
+        cache.invalidateAll();
+        publisher.publishClear(CACHE_NAME);
+    }
+
+    private void evict(String key) {
+        cache.invalidate(key);
+        publisher.publish(CACHE_NAME, key);
+    }
+
+    /**
+     * 收到失效消息时只删除本节点的缓存
+     * @param key
+     */
+    public void evictLocal(String key) {
+        if (CacheInvalidationPublisher.ALL_KEYS.equals(key)) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * 加入购物车需要的商品信息
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class ProductSnapshot {
+
+        private final String name;
+
+        private final String image;
+
+        private final BigDecimal price;
+
+        private final Integer status;
+
+        public boolean isOnSale() {
+            return StatusConstant.ENABLE.equals(status);
+        }
+    }
+}
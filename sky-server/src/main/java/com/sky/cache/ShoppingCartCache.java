@@ -0,0 +1,314 @@
+package com.sky.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sky.entity.ShoppingCart;
+import com.sky.json.JacksonObjectMapper;
+import com.sky.mapper.ShoppingCartMapper;
+import com.sky.properties.ShoppingCartProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * redis中的购物车：每个用户一个hash，key为 cart:用户id
+ * 每件商品对应两个字段，n:商品标识 保存数量，i:商品标识 保存商品名称、图片、单价等信息，
+ * 商品标识由菜品id、套餐id和口味组成；字段 # 表示购物车已经从数据库加载过。
+ *
+ * 加减数量都在lua脚本中完成，不需要先查再改；修改过的用户id记录在 cart_dirty 集合中，
+ * 由定时任务批量写回数据库。
+ */
+@Component
+@Slf4j
+public class ShoppingCartCache {
+
+    private static final String KEY_PREFIX = "cart:";
+
+    private static final String DIRTY_KEY = "cart_dirty";
+
+    //以下字段名与脚本中保持一致
+    private static final String LOADED_FIELD = "#";
+    private static final String NUMBER_PREFIX = "n:";
+    private static final String ITEM_PREFIX = "i:";
+
+    //购物车没有从数据库加载过
+    private static final long NOT_LOADED = -1;
+
+    //商品不在购物车中，需要提供商品信息
+    private static final long ITEM_ABSENT = 0;
+
+    /**
+     * KEYS[1] 购物车，KEYS[2] 待写回的用户集合
+     * ARGV[1] 商品标识，ARGV[2] 增加的数量，ARGV[3] 商品信息（可以为空），ARGV[4] 过期时间（秒），ARGV[5] 用户id
+     * 返回增加后的数量
+     */
+    private static final DefaultRedisScript<Long> INCREMENT_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hexists', KEYS[1], '#') == 0 then return -1 end " +
+            "if redis.call('hexists', KEYS[1], 'n:' .. ARGV[1]) == 0 then " +
+            "  if ARGV[3] == '' then return 0 end " +
+            "  redis.call('hset', KEYS[1], 'i:' .. ARGV[1], ARGV[3]) " +
+            "end " +
+            "local number = redis.call('hincrby', KEYS[1], 'n:' .. ARGV[1], ARGV[2]) " +
+            "redis.call('expire', KEYS[1], ARGV[4]) " +
+            "redis.call('sadd', KEYS[2], ARGV[5]) " +
+            "return number",
+            Long.class);
+
+    /**
+     * 参数同上，数量减到0时删除商品，返回减少后的数量
+     */
+    private static final DefaultRedisScript<Long> DECREMENT_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hexists', KEYS[1], '#') == 0 then return -1 end " +
+            "local number = tonumber(redis.call('hget', KEYS[1], 'n:' .. ARGV[1])) " +
+            "if number == nil then return 0 end " +
+            "if number <= 1 then " +
+            "  redis.call('hdel', KEYS[1], 'n:' .. ARGV[1], 'i:' .. ARGV[1]) " +
+            "else " +
+            "  redis.call('hincrby', KEYS[1], 'n:' .. ARGV[1], -1) " +
+            "end " +
+            "redis.call('expire', KEYS[1], ARGV[4]) " +
+            "redis.call('sadd', KEYS[2], ARGV[5]) " +
+            "return number - 1",
+            Long.class);
+
+    /**
+     * KEYS[1] 购物车，KEYS[2] 待写回的用户集合；ARGV[1] 过期时间（秒），ARGV[2] 用户id
+     * 清空后保留 # 字段，避免下次访问时又从数据库加载
+     */
+    private static final DefaultRedisScript<Long> CLEAN_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('del', KEYS[1]) " +
+            "redis.call('hset', KEYS[1], '#', '1') " +
+            "redis.call('expire', KEYS[1], ARGV[1]) " +
+            "redis.call('sadd', KEYS[2], ARGV[2]) " +
+            "return 1",
+            Long.class);
+
+    /**
+     * KEYS[1] 购物车；ARGV[1] 过期时间（秒），之后依次是字段和值
+     * 购物车已经存在时不覆盖，说明其他请求已经加载过
+     */
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 1 then return 0 end " +
+            "redis.call('hset', KEYS[1], '#', '1') " +
+            "for i = 2, #ARGV, 2 do redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('expire', KEYS[1], ARGV[1]) " +
+            "return 1",
+            Long.class);
+
+    private final JacksonObjectMapper objectMapper = new JacksonObjectMapper();
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private ShoppingCartMapper shoppingCartMapper;
+    @Autowired
+    private ShoppingCartProperties shoppingCartProperties;
+
+    /**
+     * 查询用户的购物车，redis中没有时先从数据库加载
+     * @param userId
+     * @return
+     */
+    public List<ShoppingCart> list(Long userId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(KEY_PREFIX + userId);
+        if (!entries.containsKey(LOADED_FIELD)) {
+            load(userId);
+            entries = stringRedisTemplate.opsForHash().entries(KEY_PREFIX + userId);
+        }
+        return toList(userId, entries);
+    }
+
+    /**
+     * 查询redis中的购物车用于写回数据库，redis中没有时返回null
+     * @param userId
+     * @return
+     */
+    public List<ShoppingCart> snapshot(Long userId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(KEY_PREFIX + userId);
+        if (!entries.containsKey(LOADED_FIELD)) {
+            return null;
+        }
+        return toList(userId, entries);
+    }
+
+    /**
+     * 增加商品数量，商品不在购物车中时才通过itemSupplier获取商品信息
+     * @param userId
+     * @param shoppingCart 菜品id、套餐id和口味
+     * @param number 增加的数量
+     * @param itemSupplier
+     */
+    public void increment(Long userId, ShoppingCart shoppingCart, int number, Supplier<ShoppingCart> itemSupplier) {
+        String field = fieldOf(shoppingCart);
+        Long result = execute(INCREMENT_SCRIPT, userId, field, String.valueOf(number), "");
+        if (result == ITEM_ABSENT) {
+            execute(INCREMENT_SCRIPT, userId, field, String.valueOf(number), toJson(itemSupplier.get()));
+        }
+    }
+
+    /**
+     * 商品数量减一，减到0时从购物车中删除
+     * @param userId
+     * @param shoppingCart 菜品id、套餐id和口味
+     */
+    public void decrement(Long userId, ShoppingCart shoppingCart) {
+        execute(DECREMENT_SCRIPT, userId, fieldOf(shoppingCart), "1", "");
+    }
+
+    /**
+     * 批量加入购物车，已有的商品累加数量
+     * @param userId
+     * @param shoppingCartList
+     */
+    public void addAll(Long userId, List<ShoppingCart> shoppingCartList) {
+        for (ShoppingCart shoppingCart : shoppingCartList) {
+            increment(userId, shoppingCart, shoppingCart.getNumber(), () -> shoppingCart);
+        }
+    }
+
+    /**
+     * 清空购物车
+     * @param userId
+     */
+    public void clean(Long userId) {
+        stringRedisTemplate.execute(CLEAN_SCRIPT, Arrays.asList(KEY_PREFIX + userId, DIRTY_KEY),
+                expireSeconds(), String.valueOf(userId));
+    }
+
+    /**
+     * 取出一批需要写回数据库的用户id
+     * @param count
+     * @return
+     */
+    public List<Long> popDirty(int count) {
+        List<String> userIds = stringRedisTemplate.opsForSet().pop(DIRTY_KEY, count);
+        if (userIds == null) {
+            return Collections.emptyList();
+        }
+        return userIds.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 写回失败时重新标记，等待下一次写回
+     * @param userId
+     */
+    public void markDirty(Long userId) {
+        stringRedisTemplate.opsForSet().add(DIRTY_KEY, String.valueOf(userId));
+    }
+
+    /**
+     * 执行修改购物车的脚本，购物车还没有加载时先从数据库加载再执行一次
+     */
+    private Long execute(DefaultRedisScript<Long> script, Long userId, String field, String number, String item) {
+        List<String> keys = Arrays.asList(KEY_PREFIX + userId, DIRTY_KEY);
+        Long result = stringRedisTemplate.execute(script, keys, field, number, item, expireSeconds(), String.valueOf(userId));
+        if (result != null && result == NOT_LOADED) {
+            load(userId);
+            result = stringRedisTemplate.execute(script, keys, field, number, item, expireSeconds(), String.valueOf(userId));
+        }
+        return result;
+    }
+
+    /**
+     * 从数据库加载购物车到redis
+     * @param userId
+     */
+    private void load(Long userId) {
+        ShoppingCart query = ShoppingCart.builder()
+                .userId(userId)
+                .build();
+        List<ShoppingCart> list = shoppingCartMapper.list(query);
+
+        List<String> args = new ArrayList<>();
+        args.add(expireSeconds());
+        for (ShoppingCart shoppingCart : list) {
+            String field = fieldOf(shoppingCart);
+            args.add(NUMBER_PREFIX + field);
+            args.add(String.valueOf(shoppingCart.getNumber()));
+            args.add(ITEM_PREFIX + field);
+            args.add(toJson(shoppingCart));
+        }
+        stringRedisTemplate.execute(LOAD_SCRIPT, Collections.singletonList(KEY_PREFIX + userId), args.toArray());
+    }
+
+    /**
+     * 把hash中的字段还原为购物车数据，按加入时间排序
+     */
+    private List<ShoppingCart> toList(Long userId, Map<Object, Object> entries) {
+        List<ShoppingCart> list = new ArrayList<>();
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            String field = (String) entry.getKey();
+            if (!field.startsWith(ITEM_PREFIX)) {
+                continue;
+            }
+            Object number = entries.get(NUMBER_PREFIX + field.substring(ITEM_PREFIX.length()));
+            if (number == null) {
+                continue;
+            }
+            ShoppingCart shoppingCart = fromJson((String) entry.getValue());
+            shoppingCart.setUserId(userId);
+            shoppingCart.setNumber(Integer.valueOf((String) number));
+            list.add(shoppingCart);
+        }
+        list.sort(Comparator.comparing(ShoppingCart::getCreateTime, Comparator.nullsLast(Comparator.<LocalDateTime>naturalOrder())));
+        return list;
+    }
+
+    /**
+     * 菜品id、套餐id和口味共同确定购物车中的一件商品
+     * @param shoppingCart
+     * @return
+     */
+    private String fieldOf(ShoppingCart shoppingCart) {
+        return nullToEmpty(shoppingCart.getDishId()) + ":" + nullToEmpty(shoppingCart.getSetmealId()) + ":"
+                + nullToEmpty(shoppingCart.getDishFlavor());
+    }
+
+    private String nullToEmpty(Object value) {
+        return value == null ? "" : value.toString();
+    }
+
+    private String expireSeconds() {
+        return String.valueOf(TimeUnit.DAYS.toSeconds(shoppingCartProperties.getExpireDays()));
+    }
+
+    /**
+     * 商品信息中不保存id、用户id和数量
+     */
+    private String toJson(ShoppingCart shoppingCart) {
+        ShoppingCart item = ShoppingCart.builder()
+                .name(shoppingCart.getName())
+                .image(shoppingCart.getImage())
+                .dishId(shoppingCart.getDishId())
+                .setmealId(shoppingCart.getSetmealId())
+                .dishFlavor(shoppingCart.getDishFlavor())
+                .amount(shoppingCart.getAmount())
+                .createTime(shoppingCart.getCreateTime())
+                .build();
+        try {
+            return objectMapper.writeValueAsString(item);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("购物车商品序列化失败", e);
+        }
+    }
+
+    private ShoppingCart fromJson(String json) {
+        try {
+            return objectMapper.readValue(json, ShoppingCart.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("购物车商品反序列化失败", e);
+        }
+    }
+}
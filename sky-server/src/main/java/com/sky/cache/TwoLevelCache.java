@@ -0,0 +1,98 @@
+package com.sky.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 两级缓存：一级为节点内的caffeine缓存，二级为redis缓存
+ * 读取时先查本地，本地未命中再查redis并回填本地；删除时同步两级缓存，并广播让其他节点删除本地缓存。
+ * 写入只发生在未命中加载或预热时，写入的是删除之后重新查询的数据，不需要广播
+ */
+public class TwoLevelCache extends AbstractValueAdaptingCache {
+
+    private final String name;
+    private final Cache<String, Object> localCache;
+    private final org.springframework.cache.Cache redisCache;
+    private final CacheInvalidationPublisher publisher;
+
+    public TwoLevelCache(String name, Cache<String, Object> localCache,
+                         org.springframework.cache.Cache redisCache, CacheInvalidationPublisher publisher) {
+        super(true);
+        this.name = name;
+        this.localCache = localCache;
+        this.redisCache = redisCache;
+        this.publisher = publisher;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return this;
+    }
+
+    @Override
+    protected Object lookup(Object key) {
+        String localKey = String.valueOf(key);
+        Object value = localCache.getIfPresent(localKey);
+        if (value != null) {
+            return value;
+        }
+
+        ValueWrapper wrapper = redisCache.get(key);
+        if (wrapper == null) {
+            return null;
+        }
+        value = toStoreValue(wrapper.get());
+        localCache.put(localKey, value);
+        return value;
+    }
+
+    @Override
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        ValueWrapper wrapper = get(key);
+        if (wrapper != null) {
+            return (T) wrapper.get();
+        }
+        T value = redisCache.get(key, valueLoader);
+        localCache.put(String.valueOf(key), toStoreValue(value));
+        return value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        redisCache.put(key, value);
+        localCache.put(String.valueOf(key), toStoreValue(value));
+    }
+
+    @Override
+    public void evict(Object key) {
+        redisCache.evict(key);
+        localCache.invalidate(String.valueOf(key));
+        publisher.publish(name, String.valueOf(key));
+    }
+
+    @Override
+    public void clear() {
+        redisCache.clear();
+        localCache.invalidateAll();
+        publisher.publishClear(name);
+    }
+
+    /**
+     * 收到失效消息时只删除本节点的本地缓存
+     * @param key
+     */
+    public void evictLocal(String key) {
+        if (CacheInvalidationPublisher.ALL_KEYS.equals(key)) {
+            localCache.invalidateAll();
+        } else {
+            localCache.invalidate(key);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.sky.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sky.properties.MenuCacheProperties;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在redis缓存管理器外面包一层本地缓存，@Cacheable/@CacheEvict使用的缓存都是两级缓存
+ */
+public class TwoLevelCacheManager implements CacheManager {
+
+    private final CacheManager redisCacheManager;
+    private final CacheInvalidationPublisher publisher;
+    private final MenuCacheProperties properties;
+
+    private final ConcurrentMap<String, TwoLevelCache> cacheMap = new ConcurrentHashMap<>();
+
+    public TwoLevelCacheManager(CacheManager redisCacheManager, CacheInvalidationPublisher publisher,
+                                MenuCacheProperties properties) {
+        this.redisCacheManager = redisCacheManager;
+        this.publisher = publisher;
+        this.properties = properties;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        return cacheMap.computeIfAbsent(name, cacheName -> {
+            Cache redisCache = redisCacheManager.getCache(cacheName);
+            return new TwoLevelCache(cacheName,
+                    Caffeine.newBuilder()
+                            .maximumSize(properties.getLocalMaximumSize())
+                            .expireAfterWrite(properties.getLocalExpireSeconds(), TimeUnit.SECONDS)
+                            .build(),
+                    redisCache, publisher);
+        });
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(cacheMap.keySet());
+    }
+
+    /**
+     * 删除本节点的本地缓存，缓存尚未创建时无需处理
+     * @param cacheName
+     * @param key
+     */
+    public void evictLocal(String cacheName, String key) {
+        TwoLevelCache cache = cacheMap.get(cacheName);
+        if (cache != null) {
+            cache.evictLocal(key);
+        }
+    }
+}
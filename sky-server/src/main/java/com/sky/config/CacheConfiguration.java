@@ -0,0 +1,57 @@
+package com.sky.config;
+
+import com.sky.cache.CacheInvalidationListener;
+import com.sky.cache.CacheInvalidationPublisher;
+import com.sky.cache.TwoLevelCacheManager;
+import com.sky.properties.MenuCacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.cache.BatchStrategies;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+import org.springframework.data.redis.cache.RedisCacheManager;
+import org.springframework.data.redis.cache.RedisCacheWriter;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * 配置类，创建两级缓存管理器和缓存失效消息的监听容器
+ */
+@Configuration
+@Slf4j
+public class CacheConfiguration {
+
+    private static final int SCAN_BATCH_SIZE = 100;
+
+    @Bean
+    public TwoLevelCacheManager cacheManager(RedisConnectionFactory redisConnectionFactory,
+                                             RedisSerializer<Object> redisValueSerializer,
+                                             CacheInvalidationPublisher publisher,
+                                             MenuCacheProperties menuCacheProperties) {
+        log.info("开始创建两级缓存管理器...");
+        //allEntries清理缓存时默认使用KEYS命令，改为SCAN分批删除，避免阻塞redis
+        RedisCacheWriter redisCacheWriter = RedisCacheWriter.nonLockingRedisCacheWriter(redisConnectionFactory,
+                BatchStrategies.scan(SCAN_BATCH_SIZE));
+        //与redisTemplate使用相同的value序列化器
+        RedisCacheConfiguration redisCacheConfiguration = RedisCacheConfiguration.defaultCacheConfig()
+                .serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(redisValueSerializer));
+        RedisCacheManager redisCacheManager = RedisCacheManager.builder(redisCacheWriter)
+                .cacheDefaults(redisCacheConfiguration)
+                .build();
+        redisCacheManager.afterPropertiesSet();
+        return new TwoLevelCacheManager(redisCacheManager, publisher, menuCacheProperties);
+    }
+
+    @Bean
+    public RedisMessageListenerContainer cacheInvalidationListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                            CacheInvalidationListener listener,
+                                                                            MenuCacheProperties menuCacheProperties) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(listener, new ChannelTopic(menuCacheProperties.getInvalidationChannel()));
+        return container;
+    }
+}
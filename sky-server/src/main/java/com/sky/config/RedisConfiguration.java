@@ -1,10 +1,14 @@
 package com.sky.config;
 
+import com.sky.cache.CompatibleRedisSerializer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 /**
@@ -14,8 +18,14 @@ import org.springframework.data.redis.serializer.StringRedisSerializer;
 @Slf4j
 public class RedisConfiguration {
 
+    /**
+     * redis value的序列化方式：json（默认）或 jdk
+     */
+    @Value("${sky.redis.value-serializer:json}")
+    private String valueSerializer;
+
     @Bean
-    public RedisTemplate redisTemplate(RedisConnectionFactory redisConnectionFactory) {
+    public RedisTemplate redisTemplate(RedisConnectionFactory redisConnectionFactory, RedisSerializer<Object> redisValueSerializer) {
         log.info("开始创建redis模版对象...");
 
         RedisTemplate redisTemplate = new RedisTemplate();
@@ -25,7 +35,26 @@ public class RedisConfiguration {
 
         //设置redis key的序列化器
         redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+
+        //设置redis value的序列化器
+        redisTemplate.setValueSerializer(redisValueSerializer);
+        redisTemplate.setHashValueSerializer(redisValueSerializer);
 
         return redisTemplate;
     }
+
+    /**
+     * redisTemplate和spring缓存共用的value序列化器
+     * json体积更小、读写更快，并且能读取升级前jdk序列化的数据；配置为jdk时保持原来的序列化方式
+     * @return
+     */
+    @Bean
+    public RedisSerializer<Object> redisValueSerializer() {
+        log.info("redis value序列化方式：{}", valueSerializer);
+        if ("jdk".equals(valueSerializer)) {
+            return new JdkSerializationRedisSerializer(getClass().getClassLoader());
+        }
+        return new CompatibleRedisSerializer();
+    }
 }
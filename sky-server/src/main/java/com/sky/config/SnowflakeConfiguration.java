@@ -0,0 +1,30 @@
+package com.sky.config;
+
+import com.sky.properties.SnowflakeProperties;
+import com.sky.task.SnowflakeWorkerLease;
+import com.sky.utils.SnowflakeIdGenerator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 配置类，用于创建生成订单号的雪花算法id生成器
+ */
+@Configuration
+@Slf4j
+public class SnowflakeConfiguration {
+
+    @Bean
+    public SnowflakeIdGenerator snowflakeIdGenerator(SnowflakeProperties snowflakeProperties,
+                                                     SnowflakeWorkerLease snowflakeWorkerLease) {
+        log.info("开始创建雪花算法id生成器: {}", snowflakeProperties);
+        //没有为节点指定id时从redis租用，避免多个节点都使用同一个默认id生成重复的订单号
+        Long workerId = snowflakeProperties.getWorkerId();
+        if (workerId == null) {
+            workerId = snowflakeWorkerLease.acquire();
+        }
+        return new SnowflakeIdGenerator(workerId,
+                snowflakeProperties.getEpoch(),
+                snowflakeProperties.getMaxBackwardMillis());
+    }
+}
@@ -1,11 +1,16 @@
 package com.sky.config;
 
+import com.sky.properties.WebSocketProperties;
+import com.sky.websocket.WebSocketBroadcastListener;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.web.socket.server.standard.ServerEndpointExporter;
 
 /**
- * WebSocket配置类，用于注册WebSocket的Bean
+ * WebSocket配置类，用于注册WebSocket的Bean和集群广播频道的监听容器
  */
 @Configuration
 public class WebSocketConfiguration {
@@ -15,4 +20,14 @@ public class WebSocketConfiguration {
         return new ServerEndpointExporter();
     }
 
+    @Bean
+    public RedisMessageListenerContainer webSocketBroadcastListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                             WebSocketBroadcastListener listener,
+                                                                             WebSocketProperties webSocketProperties) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(listener, new ChannelTopic(webSocketProperties.getBroadcastChannel()));
+        return container;
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.sky.controller.admin;
 
+import com.sky.cache.MenuCacheWarmer;
 import com.sky.dto.CategoryDTO;
 import com.sky.dto.CategoryPageQueryDTO;
 import com.sky.entity.Category;
@@ -24,6 +25,8 @@ public class CategoryController {
 
     @Autowired
     private CategoryService categoryService;
+    @Autowired
+    private MenuCacheWarmer menuCacheWarmer;
 
     /**
      * 新增分类
@@ -35,6 +38,7 @@ public class CategoryController {
     public Result<String> save(@RequestBody CategoryDTO categoryDTO){
         log.info("新增分类：{}", categoryDTO);
         categoryService.save(categoryDTO);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -61,6 +65,7 @@ public class CategoryController {
     public Result<String> deleteById(Long id){
         log.info("删除分类：{}", id);
         categoryService.deleteById(id);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -73,6 +78,7 @@ public class CategoryController {
     @ApiOperation("修改分类")
     public Result<String> update(@RequestBody CategoryDTO categoryDTO){
         categoryService.update(categoryDTO);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -86,6 +92,7 @@ public class CategoryController {
     @ApiOperation("启用禁用分类")
     public Result<String> startOrStop(@PathVariable("status") Integer status, Long id){
         categoryService.startOrStop(status,id);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
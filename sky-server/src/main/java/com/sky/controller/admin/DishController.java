@@ -1,6 +1,9 @@
 package com.sky.controller.admin;
 
 
+import com.sky.cache.DishCache;
+import com.sky.cache.MenuCacheWarmer;
+import com.sky.cache.ProductCache;
 import com.sky.dto.DishDTO;
 import com.sky.dto.DishPageQueryDTO;
 import com.sky.entity.Dish;
@@ -12,11 +15,10 @@ import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 /**
  * 菜品管理
@@ -30,7 +32,11 @@ public class DishController {
     @Autowired
     private DishService dishService;
     @Autowired
-    private RedisTemplate redisTemplate;
+    private DishCache dishCache;
+    @Autowired
+    private MenuCacheWarmer menuCacheWarmer;
+    @Autowired
+    private ProductCache productCache;
 
 
     /**
@@ -44,8 +50,8 @@ public class DishController {
         dishService.saveWithFlavor(dishDTO);
 
         //清理缓存
-        String key = "dish_" + dishDTO.getCategoryId();
-        cleanCache(key);
+        dishCache.evict(dishDTO.getCategoryId());
+        menuCacheWarmer.warmAsync();
 
         return Result.success();
     }
@@ -76,7 +82,9 @@ public class DishController {
         dishService.deleteBatch(ids);
 
         //将所有的菜品缓存数据清理掉，所有以dish开头的key
-        cleanCache("dish_*");
+        dishCache.evictAll();
+        productCache.evictDishes(ids);
+        menuCacheWarmer.warmAsync();
 
         return Result.success();
     }
@@ -120,9 +128,18 @@ public class DishController {
     public Result update(@RequestBody DishDTO dishDTO) {
         log.info("修改菜品信息：{}", dishDTO);
 
+        //修改前的分类，菜品可能被移动到其他分类
+        Long oldCategoryId = dishService.getByIdWithFlavor(dishDTO.getId()).getCategoryId();
+
         dishService.updateWithFlavor(dishDTO);
 
-        cleanCache("dish_*");
+        //只清理受影响分类的缓存
+        dishCache.evict(oldCategoryId);
+        if (dishDTO.getCategoryId() != null && !dishDTO.getCategoryId().equals(oldCategoryId)) {
+            dishCache.evict(dishDTO.getCategoryId());
+        }
+        productCache.evictDishes(Collections.singletonList(dishDTO.getId()));
+        menuCacheWarmer.warmAsync();
 
         return Result.success();
     }
@@ -140,13 +157,12 @@ public class DishController {
 
         dishService.startOrStop(status, id);
 
-        cleanCache("dish_*");
+        //只清理该菜品所在分类的缓存
+        dishCache.evict(dishService.getByIdWithFlavor(id).getCategoryId());
+        //包含该菜品的套餐也会被停售，套餐的快照一起清理
+        productCache.evictAll();
+        menuCacheWarmer.warmAsync();
 
         return Result.success();
     }
-
-    private void cleanCache(String pattern) {
-        Set keys = redisTemplate.keys(pattern);
-        redisTemplate.delete(keys);
-    }
 }
@@ -0,0 +1,55 @@
+package com.sky.controller.admin;
+
+import com.sky.result.Result;
+import com.sky.task.OrderTask;
+import com.sky.vo.WebSocketStatsVO;
+import com.sky.websocket.WebSocketServer;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 运行监控，返回的是处理本次请求的节点的数据
+ */
+@RestController
+@RequestMapping("/admin/monitor")
+@Slf4j
+@Api(tags = "运行监控相关接口")
+public class MonitorController {
+
+    @Autowired
+    private WebSocketServer webSocketServer;
+    @Autowired
+    private OrderTask orderTask;
+
+    /**
+     * 查询WebSocket连接数据
+     * @return
+     */
+    @GetMapping("/websocket")
+    @ApiOperation("查询WebSocket连接数据")
+    public Result<WebSocketStatsVO> websocket() {
+        WebSocketStatsVO webSocketStatsVO = WebSocketStatsVO.builder()
+                .onlineCount(webSocketServer.getOnlineCount())
+                .sendFailureCount(webSocketServer.getSendFailureCount())
+                .reapedCount(webSocketServer.getReapedCount())
+                .build();
+        return Result.success(webSocketStatsVO);
+    }
+
+    /**
+     * 查询订单定时任务批量修改的执行数据
+     * @return key为任务名称
+     */
+    @GetMapping("/orderTask")
+    @ApiOperation("查询订单定时任务执行数据")
+    public Result<Map<String, OrderTask.ChunkUpdateStats>> orderTask() {
+        return Result.success(orderTask.getChunkUpdateStats());
+    }
+}
@@ -87,11 +87,16 @@ public class ReportController {
 
     /**
      * 运营数据报表导出
+     * @param begin
+     * @param end
      * @param response
      */
     @GetMapping("/export")
     @ApiOperation("运营数据报表导出")
-    public void export(HttpServletResponse response) {
-        reportService.businessDataExport(response);
+    public void export(@DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate begin,
+                       @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate end,
+                       HttpServletResponse response) {
+        log.info("运营数据报表导出：{}, {}", begin, end);
+        reportService.businessDataExport(begin, end, response);
     }
 }
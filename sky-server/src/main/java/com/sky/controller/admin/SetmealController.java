@@ -1,6 +1,8 @@
 package com.sky.controller.admin;
 
 
+import com.sky.cache.MenuCacheWarmer;
+import com.sky.cache.ProductCache;
 import com.sky.dto.SetmealDTO;
 import com.sky.dto.SetmealPageQueryDTO;
 import com.sky.mapper.SetmealMapper;
@@ -15,6 +17,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Collections;
 import java.util.List;
 
 
@@ -29,6 +32,10 @@ public class SetmealController {
 
     @Autowired
     private SetmealService setmealService;
+    @Autowired
+    private MenuCacheWarmer menuCacheWarmer;
+    @Autowired
+    private ProductCache productCache;
 
     /**
      * 新增套餐
@@ -41,6 +48,7 @@ public class SetmealController {
     public Result save(@RequestBody SetmealDTO setmealDTO) {
         log.info("新增菜品：{}", setmealDTO);
         setmealService.saveWithDish(setmealDTO);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -68,6 +76,8 @@ public class SetmealController {
     public Result update(@RequestBody SetmealDTO setmealDTO) {
         log.info("修改套餐：{}", setmealDTO);
         setmealService.updateWithDish(setmealDTO);
+        productCache.evictSetmeals(Collections.singletonList(setmealDTO.getId()));
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -95,6 +105,8 @@ public class SetmealController {
     public Result delete(@RequestParam List<Long> ids) {
         log.info("根据套餐id批量删除套餐：{}", ids);
         setmealService.deleteBatch(ids);
+        productCache.evictSetmeals(ids);
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -111,6 +123,8 @@ public class SetmealController {
         log.info("根据id起售和停售套餐：{}, {}", id, status);
 
         setmealService.startOrStop(id, status);
+        productCache.evictSetmeals(Collections.singletonList(id));
+        menuCacheWarmer.warmAsync();
         return Result.success();
     }
 
@@ -40,6 +40,17 @@ public class OrderController {
         return Result.success(orderSubmitVO);
     }
 
+    /**
+     * 申请下单令牌，提交订单时携带，重复提交只会生成一个订单
+     * @return
+     */
+    @GetMapping("/submitToken")
+    @ApiOperation("申请下单令牌")
+    public Result<String> submitToken() {
+        String token = orderService.createSubmitToken();
+        return Result.success(token);
+    }
+
     /**
      * 订单支付
      *
@@ -0,0 +1,35 @@
+package com.sky.mapper;
+
+import com.sky.dto.DailyStatisticsDTO;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Select;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Mapper
+public interface DailyBusinessStatsMapper {
+
+    /**
+     * 查询日期区间内的汇总数据
+     * @param begin
+     * @param end
+     * @return
+     */
+    @Select("select stat_date date, order_count, valid_order_count, turnover, new_users " +
+            "from daily_business_stats where stat_date between #{begin} and #{end} order by stat_date")
+    List<DailyStatisticsDTO> list(LocalDate begin, LocalDate end);
+
+    /**
+     * 查询最近一次汇总的日期
+     * @return
+     */
+    @Select("select max(stat_date) from daily_business_stats")
+    LocalDate getMaxDate();
+
+    /**
+     * 批量写入汇总数据，已存在的日期直接覆盖
+     * @param list
+     */
+    void insertOrUpdateBatch(List<DailyStatisticsDTO> list);
+}
@@ -1,6 +1,7 @@
 package com.sky.mapper;
 
 import com.github.pagehelper.Page;
+import com.sky.dto.DailyStatisticsDTO;
 import com.sky.dto.GoodsSalesDTO;
 import com.sky.dto.OrdersPageQueryDTO;
 import com.sky.entity.Orders;
@@ -89,6 +90,36 @@ public interface OrderMapper {
     @Select("select * from orders where status = #{status} and order_time < #{orderTime}")
     List<Orders> getByStatusAndOrderTimeLessThan(Integer status, LocalDateTime orderTime);
 
+    /**
+     * 最早的下单时间，没有订单时返回null
+     * @return
+     */
+    @Select("select min(order_time) from orders")
+    LocalDateTime getMinOrderTime();
+
+    /**
+     * 批量修改订单，只修改当前状态为fromStatus的订单，避免覆盖已经被支付或取消的订单
+     * @param ids
+     * @param fromStatus
+     * @param orders 要修改的字段
+     * @return 修改的行数
+     */
+    int updateStatusByIds(List<Long> ids, Integer fromStatus, Orders orders);
+
+    /**
+     * 批量修改状态为fromStatus、下单时间早于orderTime的订单，每次最多修改limit条
+     * 按订单id对shardCount取模分片，只修改第shardIndex片
+     * @param fromStatus
+     * @param orderTime
+     * @param orders 要修改的字段
+     * @param shardIndex
+     * @param shardCount
+     * @param limit
+     * @return 修改的行数
+     */
+    int updateStatusByOrderTime(Integer fromStatus, LocalDateTime orderTime, Orders orders,
+                                int shardIndex, int shardCount, int limit);
+
     /**
      * 根据订单号查找订单
      * @param orderNumber
@@ -111,6 +142,21 @@ public interface OrderMapper {
      */
     Double sumByMap(Map map);
 
+    /**
+     * 按天分组统计订单数、有效订单数和营业额，一次查询覆盖整个时间段
+     * @param beginTime
+     * @param endTime
+     * @return
+     */
+    List<DailyStatisticsDTO> statisticsGroupByDate(LocalDateTime beginTime, LocalDateTime endTime);
+
+    /**
+     * 统计时间段内的订单数、有效订单数和营业额，beginTime为空时统计截止到endTime的所有订单
+     * @param beginTime
+     * @param endTime
+     * @return
+     */
+    DailyStatisticsDTO statisticsByTime(LocalDateTime beginTime, LocalDateTime endTime);
 
 
     List<GoodsSalesDTO> topSales(LocalDateTime beginTime, LocalDateTime endTime);
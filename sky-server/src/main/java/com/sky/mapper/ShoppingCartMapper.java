@@ -4,7 +4,6 @@ import com.sky.entity.ShoppingCart;
 import org.apache.ibatis.annotations.Delete;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Select;
-import org.apache.ibatis.annotations.Update;
 
 import java.util.List;
 
@@ -18,31 +17,41 @@ public interface ShoppingCartMapper {
      */
     List<ShoppingCart> list(ShoppingCart shoppingCart);
 
-    @Update("update shopping_cart set number = #{number} where id = #{id}")
-    void updateNumberById(ShoppingCart shoppingCart);
+    /**
+     * 购物车中已有该商品时数量加1
+     * @param shoppingCart
+     * @return 更新的行数，0表示购物车中还没有该商品
+     */
+    int incrementNumber(ShoppingCart shoppingCart);
 
     /**
-     * 插入一条购物车数据
+     * 数量大于1时减1
      * @param shoppingCart
+     * @return 更新的行数，0表示数量不大于1或购物车中没有该商品
      */
-    void insert(ShoppingCart shoppingCart);
+    int decrementNumber(ShoppingCart shoppingCart);
 
     /**
-     * 清空购物车
-     * @param userId
+     * 数量不大于1时删除该商品
+     * @param shoppingCart
      */
-    @Delete("delete from shopping_cart where user_id = #{userId}")
-    void deleteByUserId(Long userId);
+    void deleteIfLast(ShoppingCart shoppingCart);
 
     /**
-     * 根据主键删除购物车数据
+     * 插入一条购物车数据，依赖唯一索引uk_user_item，商品已存在时累加数量
      * @param shoppingCart
      */
-    @Delete("delete from shopping_cart where id = #{id}")
-    void deleteById(ShoppingCart shoppingCart);
+    void insertOrIncrement(ShoppingCart shoppingCart);
+
+    /**
+     * 清空购物车
+     * @param userId
+     */
+    @Delete("delete from shopping_cart where user_id = #{userId}")
+    void deleteByUserId(Long userId);
 
     /**
-     * 使用'再来一单'接口实现批量添加购物车商品
+     * 使用'再来一单'接口实现批量添加购物车商品，商品已存在时累加数量
      * @param shoppingCartList
      */
     void insertBatch(List<ShoppingCart> shoppingCartList);
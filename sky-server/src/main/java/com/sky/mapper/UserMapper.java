@@ -1,9 +1,12 @@
 package com.sky.mapper;
 
+import com.sky.dto.DailyStatisticsDTO;
 import com.sky.entity.User;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Select;
 
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Map;
 
 @Mapper
@@ -31,10 +34,25 @@ public interface UserMapper {
     @Select("select * from user where id = #{id}")
     User getById(Long userId);
 
+    /**
+     * 最早的注册时间，没有用户时返回null
+     * @return
+     */
+    @Select("select min(create_time) from user")
+    LocalDateTime getMinCreateTime();
+
     /**
      * 查询某时间段的新增用户
      * @param map
      * @return
      */
     Integer countUserByMap(Map map);
+
+    /**
+     * 按天分组统计新增用户数
+     * @param beginTime
+     * @param endTime
+     * @return
+     */
+    List<DailyStatisticsDTO> countGroupByDate(LocalDateTime beginTime, LocalDateTime endTime);
 }
@@ -0,0 +1,66 @@
+package com.sky.queue;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 超时未支付订单的延迟队列：redis有序集合，成员为订单id，分数为超时时间的毫秒时间戳
+ * 下单时加入，支付后移除，定时任务每秒取出已经到期的订单并取消
+ */
+@Component
+@Slf4j
+public class OrderTimeoutQueue {
+
+    private static final String QUEUE_KEY = "order_timeout_queue";
+
+    //取出到期订单的同时从队列中删除，多个节点同时拉取时每个订单只会被一个节点取到
+    private static final DefaultRedisScript<List> POLL_SCRIPT = new DefaultRedisScript<>(
+            "local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'limit', 0, ARGV[2]) " +
+            "if #ids > 0 then redis.call('zrem', KEYS[1], unpack(ids)) end " +
+            "return ids",
+            List.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 订单在指定时间超时
+     * @param orderId
+     * @param timeoutTime
+     */
+    public void schedule(Long orderId, LocalDateTime timeoutTime) {
+        long score = timeoutTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        stringRedisTemplate.opsForZSet().add(QUEUE_KEY, String.valueOf(orderId), score);
+    }
+
+    /**
+     * 订单已支付或已取消，不再需要超时处理
+     * @param orderId
+     */
+    public void remove(Long orderId) {
+        stringRedisTemplate.opsForZSet().remove(QUEUE_KEY, String.valueOf(orderId));
+    }
+
+    /**
+     * 取出一批已经到期的订单id
+     * @param limit
+     * @return
+     */
+    public List<Long> pollDue(int limit) {
+        List<String> ids = stringRedisTemplate.execute(POLL_SCRIPT, Collections.singletonList(QUEUE_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(limit));
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        return ids.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+}
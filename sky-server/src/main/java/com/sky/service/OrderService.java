@@ -17,6 +17,12 @@ public interface OrderService {
      */
     OrderSubmitVO submitOrder(OrdersSubmitDTO ordersSubmitDTO);
 
+    /**
+     * 进入结算页时申请下单令牌
+     * @return
+     */
+    String createSubmitToken();
+
     /**
      * 订单支付
      * @param ordersPaymentDTO
@@ -43,8 +43,10 @@ public interface ReportService {
     SalesTop10ReportVO topSales(LocalDate begin, LocalDate end);
 
     /**
-     * 运营数据报表导出
+     * 运营数据报表导出，未指定时间区间时导出近30天数据
+     * @param begin
+     * @param end
      * @param response
      */
-    void businessDataExport(HttpServletResponse response);
+    void businessDataExport(LocalDate begin, LocalDate end, HttpServletResponse response);
 }
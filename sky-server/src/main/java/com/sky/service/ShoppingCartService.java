@@ -29,4 +29,30 @@ public interface ShoppingCartService {
      * @param shoppingCartDTO
      */
     void subShoppingCart(ShoppingCartDTO shoppingCartDTO);
+
+    /**
+     * 查询指定用户的购物车
+     * @param userId
+     * @return
+     */
+    List<ShoppingCart> listByUserId(Long userId);
+
+    /**
+     * 清空指定用户的购物车
+     * @param userId
+     */
+    void cleanByUserId(Long userId);
+
+    /**
+     * 批量添加购物车，已有的商品累加数量
+     * @param userId
+     * @param shoppingCartList
+     */
+    void addBatch(Long userId, List<ShoppingCart> shoppingCartList);
+
+    /**
+     * 把redis中的购物车写回数据库
+     * @param userId
+     */
+    void syncToDatabase(Long userId);
 }
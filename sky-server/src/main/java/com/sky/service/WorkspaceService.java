@@ -1,10 +1,13 @@
 package com.sky.service;
 
+import com.sky.dto.DailyStatisticsDTO;
 import com.sky.vo.BusinessDataVO;
 import com.sky.vo.DishOverViewVO;
 import com.sky.vo.OrderOverViewVO;
 import com.sky.vo.SetmealOverViewVO;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.List;
 
 public interface WorkspaceService {
 
@@ -16,6 +19,29 @@ public interface WorkspaceService {
      */
     BusinessDataVO getBusinessData(LocalDateTime begin, LocalDateTime end);
 
+    /**
+     * 按天统计营业数据，已结束的日期读取汇总表，当天实时统计，不会写入汇总表
+     * @param begin
+     * @param end
+     * @return
+     */
+    List<DailyStatisticsDTO> getDailyStatistics(LocalDate begin, LocalDate end);
+
+    /**
+     * 将每天的营业数据汇总为整个时间段的营业数据
+     * @param dailyList
+     * @return
+     */
+    BusinessDataVO sumBusinessData(List<DailyStatisticsDTO> dailyList);
+
+    /**
+     * 根据订单和用户数据重新计算日期区间内每天的营业数据，并写入汇总表
+     * @param begin
+     * @param end
+     * @return
+     */
+    List<DailyStatisticsDTO> rollupDailyStatistics(LocalDate begin, LocalDate end);
+
     /**
      * 查询订单管理数据
      * @return
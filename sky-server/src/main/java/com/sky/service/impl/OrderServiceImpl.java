@@ -4,6 +4,7 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.github.pagehelper.Page;
 import com.github.pagehelper.PageHelper;
+import com.sky.cache.ProductCache;
 import com.sky.constant.MessageConstant;
 import com.sky.context.BaseContext;
 import com.sky.dto.*;
@@ -12,33 +13,52 @@ import com.sky.exception.AddressBookBusinessException;
 import com.sky.exception.OrderBusinessException;
 import com.sky.exception.ShoppingCartBusinessException;
 import com.sky.mapper.*;
+import com.sky.properties.OrderProperties;
+import com.sky.queue.OrderTimeoutQueue;
 import com.sky.result.PageResult;
 import com.sky.result.Result;
 import com.sky.service.OrderService;
+import com.sky.service.ShoppingCartService;
+import com.sky.utils.SnowflakeIdGenerator;
 import com.sky.utils.WeChatPayUtil;
 import com.sky.vo.OrderPaymentVO;
 import com.sky.vo.OrderStatisticsVO;
 import com.sky.vo.OrderSubmitVO;
 import com.sky.vo.OrderVO;
-import com.sky.websocket.WebSocketServer;
+import com.sky.websocket.OrderRemindCoalescer;
+import com.sky.websocket.WebSocketBroadcaster;
 import io.swagger.annotations.ApiOperation;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class OrderServiceImpl implements OrderService {
 
+    //下单令牌，值为申请令牌的用户id
+    private static final String SUBMIT_TOKEN_PREFIX = "order_token:";
+    private static final long SUBMIT_TOKEN_EXPIRE_MINUTES = 30;
+
+    //令牌对应的下单结果，提交过程中为SUBMITTING，成功后为OrderSubmitVO
+    private static final String SUBMIT_RESULT_PREFIX = "order_submit:";
+    private static final String SUBMITTING = "SUBMITTING";
+    private static final long SUBMITTING_EXPIRE_SECONDS = 30;
+    private static final long SUBMIT_RESULT_EXPIRE_MINUTES = 10;
+
     @Autowired
     private OrderMapper orderMapper;
     @Autowired
@@ -46,23 +66,93 @@ public class OrderServiceImpl implements OrderService {
     @Autowired
     private AddressBookMapper addressBookMapper;
     @Autowired
-    private ShoppingCartMapper shoppingCartMapper;
+    private ShoppingCartService shoppingCartService;
     @Autowired
     private WeChatPayUtil weChatPayUtil;
     @Autowired
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private RedisTemplate redisTemplate;
+    @Autowired
+    private ProductCache productCache;
+    @Autowired
+    private OrderProperties orderProperties;
+    @Autowired
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Autowired
     private UserMapper userMapper;
     @Autowired
-    private WebSocketServer webSocketServer;
+    private WebSocketBroadcaster webSocketBroadcaster;
+    @Autowired
+    private OrderRemindCoalescer orderRemindCoalescer;
 
 
+    /**
+     * 进入结算页时申请下单令牌
+     * @return
+     */
+    @Override
+    public String createSubmitToken() {
+        String token = UUID.randomUUID().toString().replace("-", "");
+        redisTemplate.opsForValue().set(SUBMIT_TOKEN_PREFIX + token, BaseContext.getCurrentId(),
+                SUBMIT_TOKEN_EXPIRE_MINUTES, TimeUnit.MINUTES);
+        return token;
+    }
+
     /**
      * 用户下单
+     * 携带令牌时，先用SETNX占住这个令牌，重复提交直接返回第一次的结果，不会进入事务
      * @param ordersSubmitDTO
      * @return
      */
     @Override
-    @Transactional
     public OrderSubmitVO submitOrder(OrdersSubmitDTO ordersSubmitDTO) {
+        String token = ordersSubmitDTO.getToken();
+        //兼容没有申请令牌的旧版本客户端
+        if (token == null) {
+            return doSubmitOrder(ordersSubmitDTO);
+        }
+
+        String resultKey = SUBMIT_RESULT_PREFIX + token;
+        Boolean first = redisTemplate.opsForValue().setIfAbsent(resultKey, SUBMITTING,
+                SUBMITTING_EXPIRE_SECONDS, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(first)) {
+            Object result = redisTemplate.opsForValue().get(resultKey);
+            if (result instanceof OrderSubmitVO) {
+                return (OrderSubmitVO) result;
+            }
+            throw new OrderBusinessException(MessageConstant.ORDER_SUBMITTING);
+        }
+
+        //令牌必须是当前用户申请的，并且还没有过期
+        Object userId = redisTemplate.opsForValue().get(SUBMIT_TOKEN_PREFIX + token);
+        if (userId == null || !userId.toString().equals(String.valueOf(BaseContext.getCurrentId()))) {
+            redisTemplate.delete(resultKey);
+            throw new OrderBusinessException(MessageConstant.ORDER_TOKEN_INVALID);
+        }
+
+        OrderSubmitVO orderSubmitVO;
+        try {
+            orderSubmitVO = doSubmitOrder(ordersSubmitDTO);
+        } catch (RuntimeException e) {
+            //下单失败时释放令牌，允许用户重试
+            redisTemplate.delete(resultKey);
+            throw e;
+        }
+
+        redisTemplate.opsForValue().set(resultKey, orderSubmitVO, SUBMIT_RESULT_EXPIRE_MINUTES, TimeUnit.MINUTES);
+        redisTemplate.delete(SUBMIT_TOKEN_PREFIX + token);
+        return orderSubmitVO;
+    }
+
+    /**
+     * 校验地址和购物车，生成订单和订单明细
+     * @param ordersSubmitDTO
+     * @return
+     */
+    private OrderSubmitVO doSubmitOrder(OrdersSubmitDTO ordersSubmitDTO) {
 
         //购物车为空、地址簿为空
         AddressBook addressBook = addressBookMapper.getById(ordersSubmitDTO.getAddressBookId());
@@ -72,60 +162,147 @@ public class OrderServiceImpl implements OrderService {
 
         Long userId = addressBook.getUserId();
 
-        ShoppingCart shoppingCart = ShoppingCart.builder()
-                .userId(userId)
-                .build();
-
-        List<ShoppingCart> shoppingCartList = shoppingCartMapper.list(shoppingCart);
+        List<ShoppingCart> shoppingCartList = shoppingCartService.listByUserId(userId);
         if (shoppingCartList == null || shoppingCartList.size() == 0) {
             throw new ShoppingCartBusinessException(MessageConstant.SHOPPING_CART_IS_NULL);
         }
 
-        //向订单表插入一条数据
-        Orders orders = new Orders();
-        BeanUtils.copyProperties(ordersSubmitDTO, orders);
-
-        orders.setUserId(userId);
-        orders.setOrderTime(LocalDateTime.now());
-        orders.setStatus(Orders.PENDING_PAYMENT);
-        orders.setPayStatus(Orders.UN_PAID);
-        orders.setPhone(addressBook.getPhone());
-        orders.setConsignee(addressBook.getConsignee());
-        String orderAddress = addressBook.getProvinceName() +
-                    addressBook.getCityName() +
-                    addressBook.getDistrictName() +
-                    addressBook.getDetail() + "";
-        orders.setAddress(orderAddress);
-        //使用时间戳作为订单号，要把Long型转为String
-        orders.setNumber(String.valueOf(System.currentTimeMillis()));
-
-        //后面订单明细需要使用到这个订单实体类，所以插入以后需要返回主键值
-        orderMapper.insert(orders);//
-
-        //向订单明细表插入数据
-        List<OrderDetail> orderDetailList = new ArrayList<>();
-        for (ShoppingCart cart : shoppingCartList) {
-            OrderDetail orderDetail = new OrderDetail();
-            BeanUtils.copyProperties(cart, orderDetail);
-            orderDetail.setOrderId(orders.getId());
-            orderDetailList.add(orderDetail);
+        //校验、计价和组装数据都在事务之外完成
+        //按商品当前的价格生成订单明细，不使用购物车中保存的价格
+        List<OrderDetail> orderDetailList = buildOrderDetails(shoppingCartList);
+
+        //订单金额 = 商品金额 + 打包费 + 配送费，以服务端计算的为准
+        BigDecimal goodsAmount = BigDecimal.ZERO;
+        //按加入购物车时的价格计算的商品金额，用于判断是否因为商品调价导致金额不一致
+        BigDecimal cartGoodsAmount = BigDecimal.ZERO;
+        int itemCount = 0;
+        for (int i = 0; i < orderDetailList.size(); i++) {
+            OrderDetail orderDetail = orderDetailList.get(i);
+            BigDecimal number = BigDecimal.valueOf(orderDetail.getNumber());
+            goodsAmount = goodsAmount.add(orderDetail.getAmount().multiply(number));
+            //购物车中没有保存单价时按当前价格计算
+            BigDecimal cartPrice = shoppingCartList.get(i).getAmount() != null
+                    ? shoppingCartList.get(i).getAmount() : orderDetail.getAmount();
+            cartGoodsAmount = cartGoodsAmount.add(cartPrice.multiply(number));
+            itemCount += orderDetail.getNumber();
+        }
+        int packAmount = itemCount * orderProperties.getPackFee();
+        BigDecimal extraAmount = BigDecimal.valueOf(packAmount).add(orderProperties.getDeliveryFee());
+        BigDecimal amount = goodsAmount.add(extraAmount);
+        //小程序必须提交按购物车计算的金额，不一致时不下单，避免用户按不知情的价格支付
+        if (ordersSubmitDTO.getAmount() == null) {
+            throw new OrderBusinessException(MessageConstant.ORDER_AMOUNT_ERROR);
         }
+        if (ordersSubmitDTO.getAmount().compareTo(amount) != 0) {
+            log.warn("订单金额不一致，用户id：{}，提交金额：{}，计算金额：{}", userId, ordersSubmitDTO.getAmount(), amount);
+            //小程序按购物车中的旧价格计算，查看购物车时会返回当前价格
+            if (ordersSubmitDTO.getAmount().compareTo(cartGoodsAmount.add(extraAmount)) == 0) {
+                throw new OrderBusinessException(MessageConstant.ORDER_PRICE_CHANGED);
+            }
+            throw new OrderBusinessException(MessageConstant.ORDER_AMOUNT_ERROR);
+        }
+
+        Orders orders = buildOrders(ordersSubmitDTO, addressBook, amount, packAmount);
 
-        orderDetailMapper.insertBatch(orderDetailList);
+        //事务中只有两条语句：插入订单，批量插入订单明细
+        transactionTemplate.executeWithoutResult(status -> {
+            //后面订单明细需要使用到这个订单实体类，所以插入以后需要返回主键值
+            orderMapper.insert(orders);
+            for (OrderDetail orderDetail : orderDetailList) {
+                orderDetail.setOrderId(orders.getId());
+            }
+            orderDetailMapper.insertBatch(orderDetailList);
+        });
+
+        //订单提交成功后再清空当前用户的购物车数据，清空失败时用户可以手动清空，不影响下单结果
+        try {
+            shoppingCartService.cleanByUserId(userId);
+        } catch (Exception e) {
+            log.error("下单后清空购物车失败，用户id：{}", userId, e);
+        }
 
-        //清空当前用户的购物车数据
-        shoppingCartMapper.deleteByUserId(userId);
+        //超时未支付时自动取消；订单已经提交，加入队列失败时由每小时的兜底任务取消，不影响下单结果
+        try {
+            orderTimeoutQueue.schedule(orders.getId(), orders.getOrderTime().plusMinutes(orderProperties.getPayTimeoutMinutes()));
+        } catch (Exception e) {
+            log.error("订单加入超时取消队列失败：{}", orders.getId(), e);
+        }
 
         OrderSubmitVO orderSubmitVO = OrderSubmitVO.builder()
                 .id(orders.getId())
                 .orderNumber(orders.getNumber())
-                .orderAmount(ordersSubmitDTO.getAmount())
+                .orderAmount(orders.getAmount())
                 .orderTime(orders.getOrderTime())
                 .build();
 
         return orderSubmitVO;
     }
 
+    /**
+     * 根据下单数据和地址簿组装订单
+     * @param ordersSubmitDTO
+     * @param addressBook
+     * @param amount 服务端计算的订单金额
+     * @param packAmount 服务端计算的打包费
+     * @return
+     */
+    private Orders buildOrders(OrdersSubmitDTO ordersSubmitDTO, AddressBook addressBook, BigDecimal amount, int packAmount) {
+        String orderAddress = addressBook.getProvinceName() +
+                addressBook.getCityName() +
+                addressBook.getDistrictName() +
+                addressBook.getDetail() + "";
+
+        return Orders.builder()
+                //使用雪花算法生成订单号，同一毫秒内的订单也不会重复，要把Long型转为String
+                .number(String.valueOf(snowflakeIdGenerator.nextId()))
+                .status(Orders.PENDING_PAYMENT)
+                .userId(addressBook.getUserId())
+                .addressBookId(ordersSubmitDTO.getAddressBookId())
+                .orderTime(LocalDateTime.now())
+                .payMethod(ordersSubmitDTO.getPayMethod())
+                .payStatus(Orders.UN_PAID)
+                .amount(amount)
+                .remark(ordersSubmitDTO.getRemark())
+                .phone(addressBook.getPhone())
+                .address(orderAddress)
+                .consignee(addressBook.getConsignee())
+                .estimatedDeliveryTime(ordersSubmitDTO.getEstimatedDeliveryTime())
+                .deliveryStatus(ordersSubmitDTO.getDeliveryStatus())
+                .packAmount(packAmount)
+                .tablewareNumber(ordersSubmitDTO.getTablewareNumber() == null ? 0 : ordersSubmitDTO.getTablewareNumber())
+                .tablewareStatus(ordersSubmitDTO.getTablewareStatus())
+                .build();
+    }
+
+    /**
+     * 将购物车数据转换为订单明细，订单id在插入订单后设置
+     * 名称、图片和单价取自商品快照，有商品已停售时不能下单
+     * @param shoppingCartList
+     * @return
+     */
+    private List<OrderDetail> buildOrderDetails(List<ShoppingCart> shoppingCartList) {
+        List<OrderDetail> orderDetailList = new ArrayList<>(shoppingCartList.size());
+        for (ShoppingCart cart : shoppingCartList) {
+            ProductCache.ProductSnapshot product = cart.getDishId() != null
+                    ? productCache.getDish(cart.getDishId())
+                    : productCache.getSetmeal(cart.getSetmealId());
+            if (product == null || !product.isOnSale()) {
+                throw new OrderBusinessException(MessageConstant.ORDER_PRODUCT_NOT_ON_SALE);
+            }
+
+            orderDetailList.add(OrderDetail.builder()
+                    .name(product.getName())
+                    .dishId(cart.getDishId())
+                    .setmealId(cart.getSetmealId())
+                    .dishFlavor(cart.getDishFlavor())
+                    .number(cart.getNumber())
+                    .amount(product.getPrice())
+                    .image(product.getImage())
+                    .build());
+        }
+        return orderDetailList;
+    }
+
     /**
      * 订单支付
      *
@@ -148,6 +325,7 @@ public class OrderServiceImpl implements OrderService {
         orderMapper.updateStatus(orderStatus, orderPaidStatus, checkOutTime, orderNumber);
 
         Orders orders = orderMapper.getByOrderNumber(orderNumber);
+        removeFromTimeoutQueue(orders.getId());
 
         //用户支付成功后，通过websocket向客户端浏览器推送消息
         /*
@@ -161,7 +339,7 @@ public class OrderServiceImpl implements OrderService {
         map.put("content", "订单号：" + orderNumber);
 
         String json = JSON.toJSONString(map);
-        webSocketServer.sendToAllClient(json);
+        webSocketBroadcaster.broadcast(json);
 
         return vo;
     }
@@ -183,6 +361,19 @@ public class OrderServiceImpl implements OrderService {
                 .build();
 
         orderMapper.update(orders);
+        removeFromTimeoutQueue(ordersDB.getId());
+    }
+
+    /**
+     * 已支付的订单移出超时取消队列，移除失败也不影响支付结果，到期时只会取消仍未支付的订单
+     * @param orderId
+     */
+    private void removeFromTimeoutQueue(Long orderId) {
+        try {
+            orderTimeoutQueue.remove(orderId);
+        } catch (Exception e) {
+            log.error("订单移出超时取消队列失败：{}", orderId, e);
+        }
     }
 
     /**
@@ -201,9 +392,11 @@ public class OrderServiceImpl implements OrderService {
 
         List<OrderVO> list = new ArrayList<>();
         if(page != null && page.getTotal() > 0) {
+            //一次查出当前页所有订单的明细
+            Map<Long, List<OrderDetail>> orderDetailMap = getOrderDetailMap(page.getResult());
+
             for (Orders orders : page) {
-                Long orderId = orders.getId();
-                List<OrderDetail> orderDetailList = orderDetailMapper.getByOrderId(orderId);
+                List<OrderDetail> orderDetailList = orderDetailMap.getOrDefault(orders.getId(), new ArrayList<>());
 
                 OrderVO orderVO = new OrderVO();
                 BeanUtils.copyProperties(orders, orderVO);
@@ -277,6 +470,7 @@ public class OrderServiceImpl implements OrderService {
     public void orderAgain(Long id) {
 
         List<OrderDetail> orderDetailList = orderDetailMapper.getByOrderId(id);
+        Long userId = orderMapper.getByOrderId(id).getUserId();
 
         //将详情对象转换为购物车对象
         List<ShoppingCart> shoppingCartList = new ArrayList<>();
@@ -286,11 +480,11 @@ public class OrderServiceImpl implements OrderService {
             BeanUtils.copyProperties(orderDetail, shoppingCart);
 
             shoppingCart.setCreateTime(LocalDateTime.now());
-            shoppingCart.setUserId(orderMapper.getByOrderId(id).getUserId());
+            shoppingCart.setUserId(userId);
 
             shoppingCartList.add(shoppingCart);
         }
-        shoppingCartMapper.insertBatch(shoppingCartList);
+        shoppingCartService.addBatch(userId, shoppingCartList);
     }
 
     /**
@@ -318,11 +512,14 @@ public class OrderServiceImpl implements OrderService {
         List<Orders> ordersList = page.getResult();
 
         if(!(CollectionUtils.isEmpty(ordersList))) {
+            //一次查出当前页所有订单的明细
+            Map<Long, List<OrderDetail>> orderDetailMap = getOrderDetailMap(ordersList);
+
             for (Orders orders : ordersList) {
 
                 OrderVO orderVO = new OrderVO();
                 BeanUtils.copyProperties(orders, orderVO);
-                String orderDishes = getOrderDishesStr(orders);
+                String orderDishes = getOrderDishesStr(orderDetailMap.getOrDefault(orders.getId(), new ArrayList<>()));
 
                 //将订单菜品信息封装到orderVO,并添加到要返回的list集合
                 orderVO.setOrderDishes(orderDishes);
@@ -333,13 +530,27 @@ public class OrderServiceImpl implements OrderService {
     }
 
     /**
-     * 私有方法，根据订单id获取菜品信息字符串
-     * @param orders
+     * 私有方法，批量查询订单明细并按订单id分组
+     * @param ordersList
      * @return
      */
-    private String getOrderDishesStr(Orders orders) {
+    private Map<Long, List<OrderDetail>> getOrderDetailMap(List<Orders> ordersList) {
+
+        List<Long> orderIds = ordersList.stream().map(Orders::getId).collect(Collectors.toList());
+        if (orderIds.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        return orderDetailMapper.getByOrderIds(orderIds).stream()
+                .collect(Collectors.groupingBy(OrderDetail::getOrderId));
+    }
 
-        List<OrderDetail> list = orderDetailMapper.getByOrderId(orders.getId());
+    /**
+     * 私有方法，根据订单明细获取菜品信息字符串
+     * @param list
+     * @return
+     */
+    private String getOrderDishesStr(List<OrderDetail> list) {
 
         //将每一条订单菜品信息拼接为字符串
         List<String> orderDishesList = list.stream().map(x -> {
@@ -507,16 +718,10 @@ public class OrderServiceImpl implements OrderService {
      */
     @Override
     public void remind(Long id) {
-
-        String orderNumber = orderMapper.getByOrderId(id).getNumber();
-
-        Map map = new HashMap();
-        map.put("type", 2);
-        map.put("orderId", id);
-        map.put("content","订单号：" + orderNumber);
-        String json = JSON.toJSONString(map);
-
-        //通过websocket向客户端浏览器推送消息
-        webSocketServer.sendToAllClient(json);
+        if (id == null) {
+            throw new OrderBusinessException(MessageConstant.ORDER_NOT_FOUND);
+        }
+        //同一个订单的第一次催单立即推送，窗口内之后的催单合并为一次推送
+        orderRemindCoalescer.remind(id, BaseContext.getCurrentId());
     }
 }
@@ -1,8 +1,11 @@
 package com.sky.service.impl;
 
+import com.sky.constant.MessageConstant;
+import com.sky.dto.DailyStatisticsDTO;
 import com.sky.dto.GoodsSalesDTO;
 import com.sky.entity.OrderDetail;
 import com.sky.entity.Orders;
+import com.sky.exception.ReportBusinessException;
 import com.sky.mapper.OrderDetailMapper;
 import com.sky.mapper.OrderMapper;
 import com.sky.mapper.UserMapper;
@@ -11,6 +14,10 @@ import com.sky.service.WorkspaceService;
 import com.sky.vo.*;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
@@ -40,6 +47,17 @@ public class ReportServiceImpl implements ReportService {
     @Autowired
     private WorkspaceService workspaceService;
 
+    //报表默认导出的天数
+    private static final int DEFAULT_EXPORT_DAYS = 30;
+
+    //导出时每次读取的天数，边读取边写入，区间再长也只在内存中保留一批数据
+    private static final int EXPORT_CHUNK_DAYS = 31;
+    //模版中明细数据的第一行和最后一列
+    private static final int DETAIL_FIRST_ROW = 7;
+    private static final int DETAIL_LAST_CELL = 6;
+    //SXSSF在内存中保留的行数
+    private static final int ROW_ACCESS_WINDOW_SIZE = 100;
+
     /**
      * 营业额统计
      * @param begin
@@ -51,20 +69,10 @@ public class ReportServiceImpl implements ReportService {
 
         List<LocalDate> dateList = dateList(begin, end);
 
-        List<Double> turnoverList = new ArrayList<>();
-        for (LocalDate date : dateList) {
-            LocalDateTime beginTimeForEachDay = LocalDateTime.of(date, LocalTime.MIN);
-            LocalDateTime endTimeForEachDay = LocalDateTime.of(date, LocalTime.MAX);
-
-            Map map = new HashMap<>();
-            map.put("begin", beginTimeForEachDay);
-            map.put("end", endTimeForEachDay);
-            map.put("status", Orders.COMPLETED);
+        //按天统计整个时间段，缺失的日期补0
+        List<DailyStatisticsDTO> dailyList = workspaceService.getDailyStatistics(begin, end);
 
-            Double turnover =  orderMapper.sumByMap(map);
-            turnover = (turnover == null ? 0 : turnover);
-            turnoverList.add(turnover);
-        }
+        List<Double> turnoverList = dailyList.stream().map(DailyStatisticsDTO::getTurnover).collect(Collectors.toList());
 
         return TurnoverReportVO.builder()
                 .dateList(StringUtils.join(dateList,','))
@@ -83,31 +91,22 @@ public class ReportServiceImpl implements ReportService {
 
         List<LocalDate> dateList = dateList(begin, end);
 
-        List<Integer> totalUserList = new ArrayList<>();
-
-        List<Integer> newUserList = new ArrayList<>();
-
-        for (LocalDate date : dateList) {
-            LocalDateTime beginTimeForEachDay = LocalDateTime.of(date, LocalTime.MIN);
-            LocalDateTime endTimeForEachDay = LocalDateTime.of(date, LocalTime.MAX);
+        //查询新用户，按天统计
+        List<DailyStatisticsDTO> dailyList = workspaceService.getDailyStatistics(begin, end);
 
-            //查询新用户，限定时间为当天
-            Map mapForNew = new HashMap<>();
-            mapForNew.put("begin", beginTimeForEachDay);
-            mapForNew.put("end", endTimeForEachDay);
+        //查询总用户，先查出开始日期之前的用户数，再逐天累加新用户
+        Map mapForTotal = new HashMap<>();
+        mapForTotal.put("end", LocalDateTime.of(begin.minusDays(1), LocalTime.MAX));
+        Integer totalUser = userMapper.countUserByMap(mapForTotal);
+        totalUser = (totalUser == null ? 0 : totalUser);
 
-            //查询总用户，限定时间为这天之前的所有时间
-            Map mapForTotal = new HashMap<>();
-            mapForTotal.put("end", endTimeForEachDay);
+        List<Integer> totalUserList = new ArrayList<>();
+        List<Integer> newUserList = new ArrayList<>();
 
-            Integer totalUser = userMapper.countUserByMap(mapForTotal);
-            totalUser = (totalUser == null ? 0 : totalUser);
+        for (DailyStatisticsDTO daily : dailyList) {
+            totalUser += daily.getNewUsers();
             totalUserList.add(totalUser);
-
-            Integer newUser = userMapper.countUserByMap(mapForNew);
-            newUser = (newUser == null ? 0 : newUser);
-            newUserList.add(newUser);
-
+            newUserList.add(daily.getNewUsers());
         }
 
         return UserReportVO.builder()
@@ -131,50 +130,22 @@ public class ReportServiceImpl implements ReportService {
 
         orderReportVO.setDateList(StringUtils.join(dateList,","));
 
-        List<Integer> orderCountList = new ArrayList<>();
-
-        List<Integer> validOrderCountList = new ArrayList<>();
-
-        Integer totalOrderCount = null;
-
-        Integer validOrderCount = null;
-
-        for (LocalDate date : dateList) {
-            LocalDateTime beginTimeForEachDay = LocalDateTime.of(date, LocalTime.MIN);
-            LocalDateTime endTimeForEachDay = LocalDateTime.of(date, LocalTime.MAX);
-
-            Map map = new HashMap<>();
-            map.put("begin", beginTimeForEachDay);
-            map.put("end", endTimeForEachDay);
-
-            //统计每日订单数
-            Integer dailyTotalOrder = orderMapper.countOrderByMap(map);
-            dailyTotalOrder = (dailyTotalOrder == null ? 0 : dailyTotalOrder);
-            orderCountList.add(dailyTotalOrder);
-
-            //把status放进map，再用动态sql查找有效订单数
-            map.put("status", Orders.COMPLETED);
-
-            Integer dailyValidOrder = orderMapper.countOrderByMap(map);
-            dailyValidOrder = (dailyValidOrder == null ? 0 : dailyValidOrder);
-            validOrderCountList.add(dailyValidOrder);
-
-        }
-
-        Map mapForTotal = new HashMap<>();
-        mapForTotal.put("end", LocalDateTime.of(end, LocalTime.MAX));
-
-        totalOrderCount = orderMapper.countOrderByMap(mapForTotal);
+        //统计每日订单数和有效订单数
+        List<DailyStatisticsDTO> dailyList = workspaceService.getDailyStatistics(begin, end);
 
-        mapForTotal.put("status", Orders.COMPLETED);
+        List<Integer> orderCountList = dailyList.stream().map(DailyStatisticsDTO::getOrderCount).collect(Collectors.toList());
+        List<Integer> validOrderCountList = dailyList.stream().map(DailyStatisticsDTO::getValidOrderCount).collect(Collectors.toList());
 
-        validOrderCount = orderMapper.countOrderByMap(mapForTotal);
+        //订单总数和有效订单数，限定时间为结束日期之前的所有时间
+        DailyStatisticsDTO total = orderMapper.statisticsByTime(null, LocalDateTime.of(end, LocalTime.MAX));
+        Integer totalOrderCount = total.getOrderCount();
+        Integer validOrderCount = total.getValidOrderCount();
 
         orderReportVO.setOrderCountList(StringUtils.join(orderCountList,","));
         orderReportVO.setValidOrderCountList(StringUtils.join(validOrderCountList,","));
         orderReportVO.setTotalOrderCount(totalOrderCount);
         orderReportVO.setValidOrderCount(validOrderCount);
-        Double orderCompleteRate = totalOrderCount == null ? 0.0 : validOrderCount.doubleValue() / totalOrderCount.doubleValue();
+        Double orderCompleteRate = totalOrderCount == 0 ? 0.0 : validOrderCount.doubleValue() / totalOrderCount.doubleValue();
         orderReportVO.setOrderCompletionRate(orderCompleteRate);
 
         return orderReportVO;
@@ -238,64 +209,118 @@ public class ReportServiceImpl implements ReportService {
 
     /**
      * 运营数据报表导出
+     * @param begin
+     * @param end
      * @param response
      */
     @Override
-    public void businessDataExport(HttpServletResponse response) {
-        //1. 查询数据库，获取近30天营业数据
-        LocalDate dateBegin = LocalDate.now().minusDays(30);
-        LocalDateTime beginTime = LocalDateTime.of(dateBegin, LocalTime.MIN);
-        LocalDateTime endTime = LocalDateTime.of(LocalDate.now().minusDays(1), LocalTime.MAX);
-
-        BusinessDataVO businessData = workspaceService.getBusinessData(beginTime, endTime);
+    public void businessDataExport(LocalDate begin, LocalDate end, HttpServletResponse response) {
+        //1. 查询数据库，未指定时间区间时默认导出近30天营业数据
+        if (end == null) {
+            end = LocalDate.now().minusDays(1);
+        }
+        if (begin == null) {
+            begin = end.minusDays(DEFAULT_EXPORT_DAYS - 1);
+        }
+        if (begin.isAfter(end)) {
+            throw new ReportBusinessException(MessageConstant.REPORT_DATE_RANGE_INVALID);
+        }
 
         //2. 通过POI将数据写入excel文件
-        InputStream in = this.getClass().getClassLoader().getResourceAsStream("template/reportTemplate.xlsx");
-
-        try {
+        SXSSFWorkbook workbook = null;
+        try (InputStream in = this.getClass().getClassLoader().getResourceAsStream("template/reportTemplate.xlsx")) {
             //基于模版文件创建一个新的excel文件
             XSSFWorkbook excel = new XSSFWorkbook(in);
 
-            //填充概览数据
             XSSFSheet sheet = excel.getSheetAt(0); //得到表格文件第一页
             //得到第二行的第二个单元格并写入
-            sheet.getRow(1).getCell(1).setCellValue(beginTime + "-" + endTime);
-            //同样的找到单元格写入数据
+            sheet.getRow(1).getCell(1).setCellValue(begin + "至" + end);
+
+            //记下模版中明细行的行高和单元格样式，然后删掉模版明细行，由流式写入的行代替
+            XSSFRow templateRow = sheet.getRow(DETAIL_FIRST_ROW);
+            float rowHeight = templateRow.getHeightInPoints();
+            CellStyle[] cellStyles = new CellStyle[DETAIL_LAST_CELL + 1];
+            for (int i = 1; i <= DETAIL_LAST_CELL; i++) {
+                cellStyles[i] = templateRow.getCell(i).getCellStyle();
+            }
+            for (int i = sheet.getLastRowNum(); i >= DETAIL_FIRST_ROW; i--) {
+                XSSFRow row = sheet.getRow(i);
+                if (row != null) {
+                    sheet.removeRow(row);
+                }
+            }
+
+            //填充明细数据，SXSSF只在内存中保留最近的若干行，其余行写入临时文件，区间再长内存占用也不变
+            workbook = new SXSSFWorkbook(excel, ROW_ACCESS_WINDOW_SIZE);
+            workbook.setCompressTempFiles(true);
+            SXSSFSheet detailSheet = workbook.getSheetAt(0);
+
+            //先返回响应头，浏览器立即开始下载；xlsx是zip格式，文件内容要在明细全部写完后才能输出
+            response.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+            response.setHeader("Content-Disposition", "attachment;filename=report_" + begin + "_" + end + ".xlsx");
+            response.flushBuffer();
+
+            //按批读取日汇总数据并写入明细行，同时累计概览数据
+            DailyStatisticsDTO total = DailyStatisticsDTO.empty(begin);
+            int rowIndex = DETAIL_FIRST_ROW;
+            for (LocalDate chunkBegin = begin; !chunkBegin.isAfter(end); chunkBegin = chunkBegin.plusDays(EXPORT_CHUNK_DAYS)) {
+                LocalDate chunkEnd = chunkBegin.plusDays(EXPORT_CHUNK_DAYS - 1);
+                for (DailyStatisticsDTO daily : workspaceService.getDailyStatistics(chunkBegin, chunkEnd.isAfter(end) ? end : chunkEnd)) {
+                    total.setOrderCount(total.getOrderCount() + daily.getOrderCount());
+                    total.setValidOrderCount(total.getValidOrderCount() + daily.getValidOrderCount());
+                    total.setTurnover(total.getTurnover() + daily.getTurnover());
+                    total.setNewUsers(total.getNewUsers() + daily.getNewUsers());
+                    writeDetailRow(detailSheet.createRow(rowIndex++), daily, rowHeight, cellStyles);
+                }
+            }
+
+            //填充概览数据，模版中的行在输出文件时才写入，可以在明细之后填写
+            BusinessDataVO businessData = workspaceService.sumBusinessData(Collections.singletonList(total));
             sheet.getRow(3).getCell(2).setCellValue(businessData.getTurnover());
             sheet.getRow(3).getCell(4).setCellValue(businessData.getOrderCompletionRate());
             sheet.getRow(3).getCell(6).setCellValue(businessData.getNewUsers());
             sheet.getRow(4).getCell(2).setCellValue(businessData.getValidOrderCount());
             sheet.getRow(4).getCell(4).setCellValue(businessData.getUnitPrice());
 
-            //填充明细数据
-            for (int i = 0; i < 30; i++) {
-                LocalDate date = dateBegin.plusDays(i);
-                //查询某一天的营业数据
-                BusinessDataVO businessDataVO = workspaceService.getBusinessData(LocalDateTime.of(date, LocalTime.MIN),
-                        LocalDateTime.of(date, LocalTime.MAX));
-                XSSFRow row = sheet.getRow(i + 7);
-                row.getCell(1).setCellValue(date.toString());
-                row.getCell(2).setCellValue(businessDataVO.getTurnover());
-                row.getCell(3).setCellValue(businessDataVO.getValidOrderCount());
-                row.getCell(4).setCellValue(businessDataVO.getOrderCompletionRate());
-                row.getCell(5).setCellValue(businessDataVO.getUnitPrice());
-                row.getCell(6).setCellValue(businessDataVO.getNewUsers());
-            }
-
             //3. 通过输出流将excel文件下载到客户端浏览器
             ServletOutputStream out = response.getOutputStream();
-            excel.write(out);
+            workbook.write(out);
+            out.flush();
 
             //关闭资源
             out.close();
-            in.close();
-            excel.close();
+            workbook.close();
 
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            //删除SXSSF产生的临时文件
+            if (workbook != null) {
+                workbook.dispose();
+            }
         }
+    }
 
+    /**
+     * 写入一天的明细数据
+     * @param row
+     * @param daily
+     * @param rowHeight 模版明细行的行高
+     * @param cellStyles 模版明细行的单元格样式
+     */
+    private void writeDetailRow(SXSSFRow row, DailyStatisticsDTO daily, float rowHeight, CellStyle[] cellStyles) {
+        Double orderCompletionRate = daily.getOrderCount() == 0 ? 0.0 : daily.getValidOrderCount().doubleValue() / daily.getOrderCount();
+        Double unitPrice = daily.getValidOrderCount() == 0 ? 0.0 : daily.getTurnover() / daily.getValidOrderCount();
 
-
+        row.setHeightInPoints(rowHeight);
+        for (int j = 1; j <= DETAIL_LAST_CELL; j++) {
+            row.createCell(j).setCellStyle(cellStyles[j]);
+        }
+        row.getCell(1).setCellValue(daily.getDate().toString());
+        row.getCell(2).setCellValue(daily.getTurnover());
+        row.getCell(3).setCellValue(daily.getValidOrderCount());
+        row.getCell(4).setCellValue(orderCompletionRate);
+        row.getCell(5).setCellValue(unitPrice);
+        row.getCell(6).setCellValue(daily.getNewUsers());
     }
 }
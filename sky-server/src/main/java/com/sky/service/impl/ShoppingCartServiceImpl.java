@@ -1,18 +1,20 @@
 package com.sky.service.impl;
 
+import com.sky.cache.ProductCache;
+import com.sky.cache.ShoppingCartCache;
+import com.sky.constant.MessageConstant;
 import com.sky.context.BaseContext;
 import com.sky.dto.ShoppingCartDTO;
-import com.sky.entity.Dish;
-import com.sky.entity.Setmeal;
 import com.sky.entity.ShoppingCart;
-import com.sky.mapper.DishMapper;
-import com.sky.mapper.SetmealMapper;
+import com.sky.exception.ShoppingCartBusinessException;
 import com.sky.mapper.ShoppingCartMapper;
+import com.sky.properties.ShoppingCartProperties;
 import com.sky.service.ShoppingCartService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -24,9 +26,11 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
     @Autowired
     private ShoppingCartMapper shoppingCartMapper;
     @Autowired
-    private DishMapper dishMapper;
+    private ProductCache productCache;
     @Autowired
-    private SetmealMapper setmealMapper;
+    private ShoppingCartCache shoppingCartCache;
+    @Autowired
+    private ShoppingCartProperties shoppingCartProperties;
 
 
     /**
@@ -42,49 +46,73 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
         Long userId = BaseContext.getCurrentId();
         shoppingCart.setUserId(userId);
 
-        //判断当前加到购物车中的商品是否已经存在
-        List<ShoppingCart> list = shoppingCartMapper.list(shoppingCart);
-        //已存在，只需要将数量 +1
-        if (list != null && list.size() > 0) {
-            ShoppingCart cart = list.get(0);
-            cart.setNumber(cart.getNumber() + 1);
-            shoppingCartMapper.updateNumberById(cart);
-        } else {
-            //不存在，需要插入一条购物车数据
-            //判断本次添加到购物车的是菜品还是套餐
-            Long dishId = shoppingCart.getDishId();
-            if (dishId != null) {
-                //添加菜品
-                Dish dish = dishMapper.getById(dishId);
-                shoppingCart.setImage(dish.getImage());
-                shoppingCart.setName(dish.getName());
-                shoppingCart.setAmount(dish.getPrice());
-            } else {
-                //添加套餐
-                Long setmealId = shoppingCart.getSetmealId();
-                Setmeal setmeal = setmealMapper.getById(setmealId);
-
-                shoppingCart.setImage(setmeal.getImage());
-                shoppingCart.setName(setmeal.getName());
-                shoppingCart.setAmount(setmeal.getPrice());
-            }
-            shoppingCart.setNumber(1);
-            shoppingCart.setCreateTime(LocalDateTime.now());
-            shoppingCartMapper.insert(shoppingCart);
+        //从本地的商品快照中检查售卖状态，已停售的商品不能加入购物车
+        ProductCache.ProductSnapshot product = getProduct(shoppingCart);
+
+        //购物车保存在redis中，只有商品第一次加入时才需要商品信息
+        if (shoppingCartProperties.isRedisEnabled()) {
+            shoppingCartCache.increment(userId, shoppingCart, 1, () -> {
+                fillProductInfo(shoppingCart, product);
+                shoppingCart.setCreateTime(LocalDateTime.now());
+                return shoppingCart;
+            });
+            return;
+        }
+
+        //已存在，直接在数据库中将数量 +1
+        if (shoppingCartMapper.incrementNumber(shoppingCart) > 0) {
+            return;
         }
+        //不存在，需要插入一条购物车数据；并发插入同一商品时由唯一索引转为数量累加
+        fillProductInfo(shoppingCart, product);
+        shoppingCart.setNumber(1);
+        shoppingCart.setCreateTime(LocalDateTime.now());
+        shoppingCartMapper.insertOrIncrement(shoppingCart);
+    }
+
+    /**
+     * 查询菜品或套餐的快照，商品不存在或已停售时抛出异常
+     * @param shoppingCart
+     * @return
+     */
+    private ProductCache.ProductSnapshot getProduct(ShoppingCart shoppingCart) {
+        //判断本次添加到购物车的是菜品还是套餐
+        ProductCache.ProductSnapshot product = shoppingCart.getDishId() != null
+                ? productCache.getDish(shoppingCart.getDishId())
+                : productCache.getSetmeal(shoppingCart.getSetmealId());
+        if (product == null || !product.isOnSale()) {
+            throw new ShoppingCartBusinessException(MessageConstant.PRODUCT_NOT_ON_SALE);
+        }
+        return product;
+    }
+
+    /**
+     * 填充菜品或套餐的名称、图片和单价
+     * @param shoppingCart
+     * @param product
+     */
+    private void fillProductInfo(ShoppingCart shoppingCart, ProductCache.ProductSnapshot product) {
+        shoppingCart.setImage(product.getImage());
+        shoppingCart.setName(product.getName());
+        shoppingCart.setAmount(product.getPrice());
     }
 
     /**
-     * 查看购物车
+     * 查看购物车，单价按商品当前的价格返回，和下单时的计价保持一致
      * @return
      */
     @Override
     public List<ShoppingCart> showShoppingCart() {
-        Long userId = BaseContext.getCurrentId();
-        ShoppingCart shoppingCart = ShoppingCart.builder()
-                .userId(userId)
-                .build();
-        List<ShoppingCart> list = shoppingCartMapper.list(shoppingCart);
+        List<ShoppingCart> list = listByUserId(BaseContext.getCurrentId());
+        for (ShoppingCart shoppingCart : list) {
+            ProductCache.ProductSnapshot product = shoppingCart.getDishId() != null
+                    ? productCache.getDish(shoppingCart.getDishId())
+                    : productCache.getSetmeal(shoppingCart.getSetmealId());
+            //已停售的商品保留原来的信息，下单时再提示
+            if (product != null && product.isOnSale()) {
+                fillProductInfo(shoppingCart, product);
+            }
+        }
         return list;
     }
 
@@ -93,8 +121,7 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
      */
     @Override
     public void cleanShoppingCart() {
-        Long userId = BaseContext.getCurrentId();
-        shoppingCartMapper.deleteByUserId(userId);
+        cleanByUserId(BaseContext.getCurrentId());
     }
 
     /**
@@ -109,17 +136,85 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
         BeanUtils.copyProperties(shoppingCartDTO, cart);
         cart.setUserId(userId);
 
-        List<ShoppingCart> list = shoppingCartMapper.list(cart);
-        if(list != null && list.size() > 0) {
-            ShoppingCart shoppingCart = list.get(0);
-            if (shoppingCart.getNumber() == 1) {
-                //如果菜品/套餐数量为1，直接删除当前记录
-                shoppingCartMapper.deleteById(shoppingCart);
-            } else {
-                //如果菜品/套餐数量大于1，执行更新操作，修改份数
-                shoppingCart.setNumber(shoppingCart.getNumber() - 1);
-                shoppingCartMapper.updateNumberById(shoppingCart);
-            }
+        if (shoppingCartProperties.isRedisEnabled()) {
+            shoppingCartCache.decrement(userId, cart);
+            return;
+        }
+
+        //如果菜品/套餐数量大于1，直接在数据库中将份数 -1
+        if (shoppingCartMapper.decrementNumber(cart) == 0) {
+            //如果菜品/套餐数量为1，直接删除当前记录
+            shoppingCartMapper.deleteIfLast(cart);
+        }
+    }
+
+    /**
+     * 查询指定用户的购物车
+     * @param userId
+     * @return
+     */
+    @Override
+    public List<ShoppingCart> listByUserId(Long userId) {
+        if (shoppingCartProperties.isRedisEnabled()) {
+            return shoppingCartCache.list(userId);
+        }
+        ShoppingCart shoppingCart = ShoppingCart.builder()
+                .userId(userId)
+                .build();
+        return shoppingCartMapper.list(shoppingCart);
+    }
+
+    /**
+     * 清空指定用户的购物车
+     * @param userId
+     */
+    @Override
+    public void cleanByUserId(Long userId) {
+        if (shoppingCartProperties.isRedisEnabled()) {
+            shoppingCartCache.clean(userId);
+            return;
+        }
+        shoppingCartMapper.deleteByUserId(userId);
+    }
+
+    /**
+     * 批量添加购物车，已有的商品累加数量
+     * @param userId
+     * @param shoppingCartList
+     */
+    @Override
+    public void addBatch(Long userId, List<ShoppingCart> shoppingCartList) {
+        if (shoppingCartProperties.isRedisEnabled()) {
+            shoppingCartCache.addAll(userId, shoppingCartList);
+            return;
+        }
+        shoppingCartMapper.insertBatch(shoppingCartList);
+    }
+
+    /**
+     * 把redis中的购物车写回数据库，在同一个事务中整体替换该用户在数据库中的购物车
+     * redis中的购物车已经过期时不修改数据库，数据库中的购物车就是最新的
+     * 删除会锁住该用户的购物车记录，删除后再读取一次redis，多个节点同时写回同一个用户时，
+     * 后执行的一方会等前一个事务提交后再读取，不会用旧数据覆盖新数据
+     * @param userId
+     */
+    @Override
+    @Transactional
+    public void syncToDatabase(Long userId) {
+        List<ShoppingCart> list = shoppingCartCache.snapshot(userId);
+        if (list == null) {
+            return;
+        }
+
+        shoppingCartMapper.deleteByUserId(userId);
+
+        //等待锁期间redis中的购物车可能又被修改或已经过期
+        List<ShoppingCart> latest = shoppingCartCache.snapshot(userId);
+        if (latest != null) {
+            list = latest;
+        }
+        if (!list.isEmpty()) {
+            shoppingCartMapper.insertBatch(list);
         }
     }
 }
@@ -1,7 +1,9 @@
 package com.sky.service.impl;
 
 import com.sky.constant.StatusConstant;
+import com.sky.dto.DailyStatisticsDTO;
 import com.sky.entity.Orders;
+import com.sky.mapper.DailyBusinessStatsMapper;
 import com.sky.mapper.DishMapper;
 import com.sky.mapper.OrderMapper;
 import com.sky.mapper.SetmealMapper;
@@ -14,9 +16,13 @@ import com.sky.vo.SetmealOverViewVO;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Service
@@ -31,6 +37,8 @@ public class WorkspaceServiceImpl implements WorkspaceService {
     private DishMapper dishMapper;
     @Autowired
     private SetmealMapper setmealMapper;
+    @Autowired
+    private DailyBusinessStatsMapper dailyBusinessStatsMapper;
 
     /**
      * 根据时间段统计营业情况
@@ -47,6 +55,11 @@ public class WorkspaceServiceImpl implements WorkspaceService {
          * 新增用户：当日新增用户的数量
          */
 
+        //按整天查询时，已结束的日期直接读取日汇总数据
+        if (begin.toLocalTime().equals(LocalTime.MIN) && end.toLocalTime().equals(LocalTime.MAX)) {
+            return sumBusinessData(getDailyStatistics(begin.toLocalDate(), end.toLocalDate()));
+        }
+
         Map map = new HashMap();
         map.put("begin",begin);
         map.put("end",end);
@@ -85,6 +98,136 @@ public class WorkspaceServiceImpl implements WorkspaceService {
 
     }
 
+    /**
+     * 按天统计营业数据，已结束的日期读取汇总表，当天实时统计
+     * 只读取不写入：汇总表中缺失的日期从原始数据临时计算，写入汇总表由每日汇总任务完成
+     * @param begin
+     * @param end
+     * @return
+     */
+    public List<DailyStatisticsDTO> getDailyStatistics(LocalDate begin, LocalDate end) {
+        LocalDate today = LocalDate.now();
+        Map<LocalDate, DailyStatisticsDTO> dailyMap = new HashMap<>();
+
+        //已结束的日期，读取汇总表
+        LocalDate closedEnd = end.isBefore(today) ? end : today.minusDays(1);
+        if (!begin.isAfter(closedEnd)) {
+            List<DailyStatisticsDTO> rollupList = dailyBusinessStatsMapper.list(begin, closedEnd);
+            rollupList.forEach(daily -> dailyMap.put(daily.getDate(), daily));
+
+            //汇总表中缺失的日期（例如定时任务还未执行），从原始数据计算
+            if (rollupList.size() < ChronoUnit.DAYS.between(begin, closedEnd) + 1) {
+                LocalDate missingBegin = begin;
+                while (dailyMap.containsKey(missingBegin)) {
+                    missingBegin = missingBegin.plusDays(1);
+                }
+                LocalDate missingEnd = closedEnd;
+                while (dailyMap.containsKey(missingEnd)) {
+                    missingEnd = missingEnd.minusDays(1);
+                }
+                computeDailyStatistics(missingBegin, missingEnd).forEach(daily -> dailyMap.put(daily.getDate(), daily));
+            }
+        }
+
+        //当天的数据仍在变化，只统计当天的原始数据
+        if (!today.isBefore(begin) && !today.isAfter(end)) {
+            computeDailyStatistics(today, today).forEach(daily -> dailyMap.put(daily.getDate(), daily));
+        }
+
+        return fillDateGaps(begin, end, dailyMap);
+    }
+
+    /**
+     * 根据订单和用户数据重新计算日期区间内每天的营业数据，并写入汇总表
+     * @param begin
+     * @param end
+     * @return
+     */
+    public List<DailyStatisticsDTO> rollupDailyStatistics(LocalDate begin, LocalDate end) {
+        List<DailyStatisticsDTO> dailyList = computeDailyStatistics(begin, end);
+        if (dailyList.size() > 0) {
+            dailyBusinessStatsMapper.insertOrUpdateBatch(dailyList);
+        }
+        return dailyList;
+    }
+
+    /**
+     * 分组查询订单表和用户表，得到日期区间内每天的营业数据
+     * @param begin
+     * @param end
+     * @return
+     */
+    private List<DailyStatisticsDTO> computeDailyStatistics(LocalDate begin, LocalDate end) {
+        LocalDateTime beginTime = LocalDateTime.of(begin, LocalTime.MIN);
+        LocalDateTime endTime = LocalDateTime.of(end, LocalTime.MAX);
+
+        Map<LocalDate, DailyStatisticsDTO> dailyMap = new HashMap<>();
+        for (DailyStatisticsDTO daily : orderMapper.statisticsGroupByDate(beginTime, endTime)) {
+            dailyMap.put(daily.getDate(), daily);
+        }
+        for (DailyStatisticsDTO users : userMapper.countGroupByDate(beginTime, endTime)) {
+            dailyMap.computeIfAbsent(users.getDate(), DailyStatisticsDTO::empty).setNewUsers(users.getNewUsers());
+        }
+        return fillDateGaps(begin, end, dailyMap);
+    }
+
+    /**
+     * 按日期顺序展开分组查询结果，没有数据的日期和字段用0填充
+     * @param begin
+     * @param end
+     * @param dailyMap
+     * @return
+     */
+    private List<DailyStatisticsDTO> fillDateGaps(LocalDate begin, LocalDate end, Map<LocalDate, DailyStatisticsDTO> dailyMap) {
+        List<DailyStatisticsDTO> result = new ArrayList<>();
+        for (LocalDate date = begin; !date.isAfter(end); date = date.plusDays(1)) {
+            DailyStatisticsDTO daily = DailyStatisticsDTO.empty(date);
+            DailyStatisticsDTO found = dailyMap.get(date);
+            if (found != null) {
+                if (found.getOrderCount() != null) daily.setOrderCount(found.getOrderCount());
+                if (found.getValidOrderCount() != null) daily.setValidOrderCount(found.getValidOrderCount());
+                if (found.getTurnover() != null) daily.setTurnover(found.getTurnover());
+                if (found.getNewUsers() != null) daily.setNewUsers(found.getNewUsers());
+            }
+            result.add(daily);
+        }
+        return result;
+    }
+
+    /**
+     * 将每天的营业数据汇总为整个时间段的营业数据
+     * @param dailyList
+     * @return
+     */
+    public BusinessDataVO sumBusinessData(List<DailyStatisticsDTO> dailyList) {
+        int totalOrderCount = 0;
+        int validOrderCount = 0;
+        int newUsers = 0;
+        double turnover = 0.0;
+        for (DailyStatisticsDTO daily : dailyList) {
+            totalOrderCount += daily.getOrderCount();
+            validOrderCount += daily.getValidOrderCount();
+            newUsers += daily.getNewUsers();
+            turnover += daily.getTurnover();
+        }
+
+        Double unitPrice = 0.0;
+        Double orderCompletionRate = 0.0;
+
+        if(totalOrderCount != 0 && validOrderCount != 0){
+            orderCompletionRate = (double) validOrderCount / totalOrderCount;
+            unitPrice = turnover / validOrderCount;
+        }
+
+        return BusinessDataVO.builder()
+                .turnover(turnover)
+                .validOrderCount(validOrderCount)
+                .orderCompletionRate(orderCompletionRate)
+                .unitPrice(unitPrice)
+                .newUsers(newUsers)
+                .build();
+    }
+
 
     /**
      * 查询订单管理数据
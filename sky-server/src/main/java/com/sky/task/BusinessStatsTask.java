@@ -0,0 +1,86 @@
+package com.sky.task;
+
+import com.sky.mapper.DailyBusinessStatsMapper;
+import com.sky.mapper.OrderMapper;
+import com.sky.mapper.UserMapper;
+import com.sky.service.WorkspaceService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * 定时任务类，每天汇总已结束日期的营业数据
+ */
+@Component
+@Slf4j
+public class BusinessStatsTask {
+
+    private static final long LEASE_MILLIS = 30 * 60 * 1000;
+
+    //补算时每次汇总的天数，避免一次写入过多数据
+    private static final int ROLLUP_CHUNK_DAYS = 31;
+
+    @Autowired
+    private WorkspaceService workspaceService;
+    @Autowired
+    private DailyBusinessStatsMapper dailyBusinessStatsMapper;
+    @Autowired
+    private OrderMapper orderMapper;
+    @Autowired
+    private UserMapper userMapper;
+    @Autowired
+    private TaskCoordinator taskCoordinator;
+
+    /**
+     * 每日凌晨3点汇总营业数据
+     * 凌晨2点的定时任务会把前一天一直派送中的订单改为已完成，所以在它之后执行，并且重新计算前两天的数据
+     */
+    @Scheduled(cron = "00 00 03 * * ?")
+    public void rollupBusinessStats() {
+        //集群内只需要一个节点汇总
+        taskCoordinator.runExclusive("rollupBusinessStats", LEASE_MILLIS, this::doRollupBusinessStats);
+    }
+
+    private void doRollupBusinessStats() {
+        log.info("汇总每日营业数据, {}", LocalDateTime.now());
+
+        LocalDate end = LocalDate.now().minusDays(1);
+        LocalDate begin = end.minusDays(1);
+
+        //汇总表落后时（例如服务停机），从最后一次汇总的日期开始补算
+        LocalDate lastDate = dailyBusinessStatsMapper.getMaxDate();
+        if (lastDate != null && lastDate.isBefore(begin)) {
+            begin = lastDate.plusDays(1);
+        }
+        //汇总表为空时（第一次部署），从最早的订单或用户开始补算全部历史数据
+        if (lastDate == null) {
+            LocalDate firstDate = getFirstDataDate();
+            if (firstDate != null && firstDate.isBefore(begin)) {
+                begin = firstDate;
+            }
+        }
+
+        for (LocalDate chunkBegin = begin; !chunkBegin.isAfter(end); chunkBegin = chunkBegin.plusDays(ROLLUP_CHUNK_DAYS)) {
+            LocalDate chunkEnd = chunkBegin.plusDays(ROLLUP_CHUNK_DAYS - 1);
+            workspaceService.rollupDailyStatistics(chunkBegin, chunkEnd.isAfter(end) ? end : chunkEnd);
+        }
+        log.info("营业数据汇总完成：{}至{}", begin, end);
+    }
+
+    /**
+     * 最早有订单或新增用户的日期，都没有时返回null
+     * @return
+     */
+    private LocalDate getFirstDataDate() {
+        LocalDateTime minOrderTime = orderMapper.getMinOrderTime();
+        LocalDateTime minCreateTime = userMapper.getMinCreateTime();
+        if (minOrderTime == null || (minCreateTime != null && minCreateTime.isBefore(minOrderTime))) {
+            minOrderTime = minCreateTime;
+        }
+        return minOrderTime == null ? null : minOrderTime.toLocalDate();
+    }
+}
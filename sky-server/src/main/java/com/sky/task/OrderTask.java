@@ -3,13 +3,21 @@ package com.sky.task;
 
 import com.sky.entity.Orders;
 import com.sky.mapper.OrderMapper;
+import com.sky.properties.OrderProperties;
+import com.sky.queue.OrderTimeoutQueue;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 定时任务类，定时处理订单状态
@@ -18,30 +26,100 @@ import java.util.List;
 @Slf4j
 public class OrderTask {
 
+    //每次从延迟队列中取出的订单数
+    private static final int TIMEOUT_POLL_SIZE = 100;
+
+    //分片任务的租期，执行成功后租期内其他节点不会再领取同一个分片
+    private static final long TASK_LEASE_MILLIS = 10 * 60 * 1000;
+
+    //启动时恢复延迟队列的租期
+    private static final long RECOVER_LEASE_MILLIS = 5 * 60 * 1000;
+
+    //定时任务批量修改订单时每批的最大行数
+    private static final int UPDATE_CHUNK_SIZE = 500;
+
+    private static final String TIMEOUT_CANCEL_REASON = "订单超时未支付，自动取消订单";
+
     @Autowired
     private OrderMapper orderMapper;
+    @Autowired
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Autowired
+    private OrderProperties orderProperties;
+    @Autowired
+    private TaskCoordinator taskCoordinator;
+
+    //每个批量修改任务在本节点的执行统计，key为任务名称
+    private final Map<String, ChunkUpdateStats> chunkUpdateStats = new ConcurrentHashMap<>();
 
     /**
-     * 每分钟检查是否有超时未支付订单
+     * 启动时把所有待支付订单重新加入延迟队列，redis数据丢失时也能按时取消
+     * 集群内只需要一个节点执行，滚动重启时租期内启动的其他节点不再重复加载
      */
-    @Scheduled(cron = "00 * * * * ?")
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverTimeoutQueue() {
+        taskCoordinator.runExclusive("recoverTimeoutQueue", RECOVER_LEASE_MILLIS, this::doRecoverTimeoutQueue);
+    }
+
+    private void doRecoverTimeoutQueue() {
+        List<Orders> list = orderMapper.getByStatusAndOrderTimeLessThan(Orders.PENDING_PAYMENT, LocalDateTime.now());
+        for (Orders orders : list) {
+            orderTimeoutQueue.schedule(orders.getId(), orders.getOrderTime().plusMinutes(orderProperties.getPayTimeoutMinutes()));
+        }
+        log.info("待支付订单加入延迟队列：{}个", list.size());
+    }
+
+    /**
+     * 每秒从延迟队列中取出到期的订单并取消，已经支付的订单不会被修改
+     * 每个订单只会被一个节点从队列中取出，多个节点同时执行也不会重复处理，不需要加锁
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void cancelTimeoutOrders() {
+        List<Long> ids;
+        do {
+            ids = orderTimeoutQueue.pollDue(TIMEOUT_POLL_SIZE);
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            Orders orders = Orders.builder()
+                    .status(Orders.CANCELLED)
+                    .cancelReason(TIMEOUT_CANCEL_REASON)
+                    .cancelTime(LocalDateTime.now())
+                    .build();
+            try {
+                int rows = orderMapper.updateStatusByIds(ids, Orders.PENDING_PAYMENT, orders);
+                log.info("取消超时未支付订单：{}个", rows);
+            } catch (Exception e) {
+                //已经从队列中取出，失败时放回去等下一次重试
+                log.error("取消超时未支付订单失败：{}", ids, e);
+                for (Long id : ids) {
+                    orderTimeoutQueue.schedule(id, LocalDateTime.now());
+                }
+                return;
+            }
+        } while (ids.size() == TIMEOUT_POLL_SIZE);
+    }
+
+    /**
+     * 每小时兜底检查一次超时未支付订单，处理延迟队列遗漏的订单（例如下单后加入队列失败）
+     * 按订单id分片，集群内各节点并行处理不同的分片；依赖 (status, order_time) 索引，见 sql/orders_status_order_time_index.sql
+     */
+    @Scheduled(cron = "00 30 * * * ?")
     public void processTimeOutOrder() {
         log.info("超时未支付订单定时处理,{}", LocalDateTime.now());
 
         //检查是否有超时未支付订单
-        LocalDateTime time = LocalDateTime.now().minusMinutes(15);
-
-        List<Orders> list = orderMapper.getByStatusAndOrderTimeLessThan(Orders.PENDING_PAYMENT, time);
+        LocalDateTime time = LocalDateTime.now().minusMinutes(orderProperties.getPayTimeoutMinutes());
 
-        if (list != null && list.size() > 0) {
-            //如果有，则更新订单信息并取消订单
-            for (Orders orders : list) {
-                orders.setStatus(Orders.CANCELLED);
-                orders.setCancelReason("订单超时未支付，自动取消订单");
-                orders.setCancelTime(LocalDateTime.now());
-                orderMapper.update(orders);
-            }
-        }
+        //如果有，则批量更新订单信息并取消订单
+        Orders orders = Orders.builder()
+                .status(Orders.CANCELLED)
+                .cancelReason(TIMEOUT_CANCEL_REASON)
+                .cancelTime(LocalDateTime.now())
+                .build();
+        taskCoordinator.runSharded("processTimeOutOrder", TASK_LEASE_MILLIS, (shardIndex, shardCount) ->
+                updateInChunks("取消超时未支付订单", Orders.PENDING_PAYMENT, time, orders, shardIndex, shardCount));
     }
 
     /**
@@ -52,17 +130,96 @@ public class OrderTask {
         log.info("定时处理一直处于派送中的订单, {}", LocalDateTime.now());
 
         LocalDateTime time = LocalDateTime.now().minusMinutes(120);
-        //检查是否有一直处于派送中的订单
-        List<Orders> list = orderMapper.getByStatusAndOrderTimeLessThan(Orders.DELIVERY_IN_PROGRESS, time);
-
-        if (list != null && list.size() > 0) {
-            //如果有，则更新订单信息，设置为已完成
-            for (Orders orders : list) {
-                orders.setStatus(Orders.COMPLETED);
-                orders.setDeliveryTime(LocalDateTime.now());
-                orderMapper.update(orders);
-            }
+        //如果有一直处于派送中的订单，则批量更新订单信息，设置为已完成
+        Orders orders = Orders.builder()
+                .status(Orders.COMPLETED)
+                .deliveryTime(LocalDateTime.now())
+                .build();
+        taskCoordinator.runSharded("processOrderInDelivery", TASK_LEASE_MILLIS, (shardIndex, shardCount) ->
+                updateInChunks("完成派送中订单", Orders.DELIVERY_IN_PROGRESS, time, orders, shardIndex, shardCount));
+    }
+
+    /**
+     * 分批修改订单，每批一条语句、单独提交，积压很多订单时也不会长时间锁住订单表
+     * @param taskName 用于日志
+     * @param fromStatus
+     * @param orderTime
+     * @param orders 要修改的字段
+     * @param shardIndex
+     * @param shardCount
+     * @return 修改的总行数
+     */
+    private int updateInChunks(String taskName, Integer fromStatus, LocalDateTime orderTime, Orders orders,
+                               int shardIndex, int shardCount) {
+        long start = System.currentTimeMillis();
+        int total = 0;
+        int chunks = 0;
+        int rows;
+        do {
+            rows = orderMapper.updateStatusByOrderTime(fromStatus, orderTime, orders, shardIndex, shardCount, UPDATE_CHUNK_SIZE);
+            total += rows;
+            chunks++;
+        } while (rows == UPDATE_CHUNK_SIZE);
+
+        chunkUpdateStats.computeIfAbsent(taskName, name -> new ChunkUpdateStats())
+                .record(total, chunks, System.currentTimeMillis() - start);
+        log.info("{}：分片{}/{}，修改{}条，分{}批，耗时{}ms", taskName, shardIndex, shardCount, total, chunks,
+                System.currentTimeMillis() - start);
+        return total;
+    }
+
+    /**
+     * 批量修改任务在本节点的执行统计
+     * @return key为任务名称
+     */
+    public Map<String, ChunkUpdateStats> getChunkUpdateStats() {
+        return Collections.unmodifiableMap(chunkUpdateStats);
+    }
+
+    /**
+     * 批量修改任务的执行统计：最近一次执行和累计的修改行数、批数
+     */
+    public static class ChunkUpdateStats {
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong totalRows = new AtomicLong();
+        private final AtomicLong totalChunks = new AtomicLong();
+
+        private volatile int lastRows;
+        private volatile int lastChunks;
+        private volatile long lastElapsedMillis;
+
+        private void record(int rows, int chunks, long elapsedMillis) {
+            runs.incrementAndGet();
+            totalRows.addAndGet(rows);
+            totalChunks.addAndGet(chunks);
+            lastRows = rows;
+            lastChunks = chunks;
+            lastElapsedMillis = elapsedMillis;
+        }
+
+        public long getRuns() {
+            return runs.get();
         }
 
+        public long getTotalRows() {
+            return totalRows.get();
+        }
+
+        public long getTotalChunks() {
+            return totalChunks.get();
+        }
+
+        public int getLastRows() {
+            return lastRows;
+        }
+
+        public int getLastChunks() {
+            return lastChunks;
+        }
+
+        public long getLastElapsedMillis() {
+            return lastElapsedMillis;
+        }
     }
 }
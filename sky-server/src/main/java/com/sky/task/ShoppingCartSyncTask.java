@@ -0,0 +1,53 @@
+package com.sky.task;
+
+import com.sky.cache.ShoppingCartCache;
+import com.sky.properties.ShoppingCartProperties;
+import com.sky.service.ShoppingCartService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 定时任务类，把redis中修改过的购物车批量写回数据库
+ */
+@Component
+@Slf4j
+public class ShoppingCartSyncTask {
+
+    @Autowired
+    private ShoppingCartCache shoppingCartCache;
+    @Autowired
+    private ShoppingCartService shoppingCartService;
+    @Autowired
+    private ShoppingCartProperties shoppingCartProperties;
+
+    /**
+     * 每隔一段时间写回一次，待写回的用户保存在redis中，节点重启后由其他节点或重启后的节点继续写回
+     */
+    @Scheduled(fixedDelayString = "${sky.shopping-cart.flush-interval-millis:5000}")
+    public void syncShoppingCart() {
+        if (!shoppingCartProperties.isRedisEnabled()) {
+            return;
+        }
+
+        int batchSize = shoppingCartProperties.getFlushBatchSize();
+        boolean failed = false;
+        List<Long> userIds;
+        do {
+            userIds = shoppingCartCache.popDirty(batchSize);
+            for (Long userId : userIds) {
+                try {
+                    shoppingCartService.syncToDatabase(userId);
+                } catch (Exception e) {
+                    log.error("购物车写回数据库失败，用户id：{}", userId, e);
+                    shoppingCartCache.markDirty(userId);
+                    failed = true;
+                }
+            }
+            //有失败时剩下的留到下一次，避免在同一次任务中反复取到失败的用户
+        } while (!failed && userIds.size() == batchSize);
+    }
+}
@@ -0,0 +1,111 @@
+package com.sky.task;
+
+import com.sky.properties.SnowflakeProperties;
+import com.sky.utils.SnowflakeIdGenerator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 没有配置节点id时，从redis租用一个雪花算法的节点id：
+ * 按 snowflake_worker_seq 自增的结果依次尝试 snowflake_worker:{id}，抢到的节点定时续期，停止时释放，
+ * 节点宕机后租约过期，id可以被新启动的节点使用
+ */
+@Component
+@Slf4j
+public class SnowflakeWorkerLease {
+
+    private static final String SEQ_KEY = "snowflake_worker_seq";
+
+    private static final String LEASE_PREFIX = "snowflake_worker:";
+
+    //只有持有租约的节点才能续期和释放
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class);
+
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    private final String token = UUID.randomUUID().toString();
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SnowflakeProperties snowflakeProperties;
+
+    //租用到的节点id，没有租用时为-1
+    private volatile long workerId = -1;
+
+    /**
+     * 租用一个空闲的节点id，全部被占用时启动失败
+     * @return
+     */
+    public synchronized long acquire() {
+        long leaseMillis = snowflakeProperties.getWorkerLeaseSeconds() * 1000;
+        long workerCount = SnowflakeIdGenerator.MAX_WORKER_ID + 1;
+        Long start = stringRedisTemplate.opsForValue().increment(SEQ_KEY);
+        for (long i = 0; i < workerCount; i++) {
+            long candidate = (start + i) % workerCount;
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LEASE_PREFIX + candidate, token,
+                    leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(locked)) {
+                workerId = candidate;
+                log.info("租用雪花算法节点id：{}", candidate);
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("没有空闲的雪花算法节点id，请通过sky.snowflake.worker-id为每个节点指定不同的id");
+    }
+
+    /**
+     * 每10秒续期一次租约
+     */
+    @Scheduled(fixedRate = 10000)
+    public void renew() {
+        long current = workerId;
+        if (current < 0) {
+            return;
+        }
+        String key = LEASE_PREFIX + current;
+        long leaseMillis = snowflakeProperties.getWorkerLeaseSeconds() * 1000;
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                    token, String.valueOf(leaseMillis));
+            if (renewed != null && renewed == 1) {
+                return;
+            }
+            //redis长时间不可用等原因导致租约过期，id还空闲时重新占用
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(key, token, leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(locked)) {
+                log.warn("雪花算法节点id租约已过期，重新占用：{}", current);
+            } else {
+                log.error("雪花算法节点id{}已被其他节点占用，订单号可能重复，请重启本节点", current);
+            }
+        } catch (Exception e) {
+            log.error("雪花算法节点id续期失败：{}", current, e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        long current = workerId;
+        if (current < 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(LEASE_PREFIX + current), token);
+        } catch (Exception e) {
+            log.warn("释放雪花算法节点id失败：{}", current, e);
+        }
+    }
+}
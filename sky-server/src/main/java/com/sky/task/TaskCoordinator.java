@@ -0,0 +1,129 @@
+package com.sky.task;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 集群内定时任务的协调：
+ * 每个节点定时在 task_nodes 有序集合中登记心跳，据此得到存活节点数和自己的序号；
+ * 任务通过redis租约锁保证同一时间只有一个节点执行，可分片的任务按存活节点数拆分，每个节点从自己的分片开始领取
+ */
+@Component
+@Slf4j
+public class TaskCoordinator {
+
+    private static final String NODES_KEY = "task_nodes";
+
+    private static final String LOCK_PREFIX = "lock:task:";
+
+    //超过这个时间没有心跳的节点视为下线
+    private static final long NODE_EXPIRE_MILLIS = 30000;
+
+    //只有持有锁的节点才能释放锁
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @PostConstruct
+    public void init() {
+        heartbeat();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stringRedisTemplate.opsForZSet().remove(NODES_KEY, nodeId);
+    }
+
+    /**
+     * 每5秒登记一次心跳，并清理已经下线的节点
+     */
+    @Scheduled(fixedRate = 5000)
+    public void heartbeat() {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForZSet().add(NODES_KEY, nodeId, now);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(NODES_KEY, 0, now - NODE_EXPIRE_MILLIS);
+    }
+
+    /**
+     * 只在一个节点上执行任务，其他节点在租期内跳过
+     * 任务成功后不释放锁，保证租期内其他节点不会重复执行；失败时释放，允许其他节点重试
+     * @param taskName
+     * @param leaseMillis 租期，应大于任务的执行时间并小于任务的执行间隔
+     * @param task
+     */
+    public void runExclusive(String taskName, long leaseMillis, Runnable task) {
+        String lockKey = LOCK_PREFIX + taskName;
+        String token = tryLock(lockKey, leaseMillis);
+        if (token == null) {
+            log.debug("任务已由其他节点执行：{}", taskName);
+            return;
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            unlock(lockKey, token);
+            throw e;
+        }
+    }
+
+    /**
+     * 按存活节点数把任务拆成多个分片，每个分片用一把租约锁，
+     * 节点从自己的序号开始依次领取，其他节点下线时剩下的分片由存活的节点领取
+     * @param taskName
+     * @param leaseMillis
+     * @param task 参数为分片序号和分片总数
+     */
+    public void runSharded(String taskName, long leaseMillis, BiConsumer<Integer, Integer> task) {
+        List<String> nodes = liveNodes();
+        int shardCount = Math.max(nodes.size(), 1);
+        int self = Math.max(nodes.indexOf(nodeId), 0);
+
+        for (int i = 0; i < shardCount; i++) {
+            int shardIndex = (self + i) % shardCount;
+            //分片总数也作为锁的一部分，节点数变化期间各节点看到的分片方式不同，不会互相占用锁
+            runExclusive(taskName + ":" + shardCount + ":" + shardIndex, leaseMillis,
+                    () -> task.accept(shardIndex, shardCount));
+        }
+    }
+
+    /**
+     * 按节点id排序的存活节点，各节点据此得到相同的序号
+     * @return
+     */
+    private List<String> liveNodes() {
+        long now = System.currentTimeMillis();
+        Set<String> nodes = stringRedisTemplate.opsForZSet().rangeByScore(NODES_KEY, now - NODE_EXPIRE_MILLIS, Double.MAX_VALUE);
+        List<String> list = nodes == null ? new ArrayList<>() : new ArrayList<>(nodes);
+        Collections.sort(list);
+        return list;
+    }
+
+    private String tryLock(String lockKey, long leaseMillis) {
+        String token = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, leaseMillis, TimeUnit.MILLISECONDS);
+        return Boolean.TRUE.equals(locked) ? token : null;
+    }
+
+    private void unlock(String lockKey, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+    }
+}
@@ -0,0 +1,157 @@
+package com.sky.websocket;
+
+import com.sky.properties.WebSocketProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 最近推送的订单消息（来单提醒、催单），按全局序号保存在固定大小的环形数组中，
+ * 管理端断线重连时带上最后收到的序号，只补发断线期间的消息。
+ *
+ * 各节点分配序号后分别发布，消息可能乱序到达：序号不连续时先暂存后面的消息，等前面的消息到达后按顺序推送，
+ * 客户端收到的序号始终递增，重连时带上的序号之前不会再有消息到达；
+ * 等待超时的序号（例如发布失败）视为丢失，跳过后继续推送
+ */
+@Component
+@Slf4j
+public class OrderEventBuffer {
+
+    @Autowired
+    private WebSocketProperties webSocketProperties;
+
+    //下标为 序号 % 容量
+    private long[] sequences;
+
+    private String[] messages;
+
+    //本节点启动后推送的最小序号，更早的消息本节点没有收到过
+    private long firstSeq;
+
+    //已按顺序推送的最大序号
+    private long deliveredSeq;
+
+    //已经到达、等待前面序号的消息
+    private final TreeMap<Long, String> pending = new TreeMap<>();
+
+    //开始等待缺失序号的时间，没有等待时为0
+    private long waitingSince;
+
+    @PostConstruct
+    public void init() {
+        int capacity = webSocketProperties.getReplayCapacity();
+        sequences = new long[capacity];
+        messages = new String[capacity];
+    }
+
+    /**
+     * 收到一条消息，返回可以按顺序推送的消息
+     * @param seq
+     * @param message
+     * @return
+     */
+    public synchronized List<String> append(long seq, String message) {
+        List<String> ready = new ArrayList<>();
+        if (deliveredSeq == 0) {
+            //启动后收到的第一条消息，从它开始计算顺序
+            firstSeq = seq;
+            deliveredSeq = seq - 1;
+        }
+        if (seq <= deliveredSeq) {
+            //已经按超时跳过的序号，只能直接推送
+            log.warn("订单消息到达过晚，序号：{}，已推送到：{}", seq, deliveredSeq);
+            store(seq, message);
+            ready.add(message);
+            return ready;
+        }
+
+        pending.put(seq, message);
+        drain(ready);
+        return ready;
+    }
+
+    /**
+     * 缺失的序号等待超时后跳过，返回被暂存的消息
+     * @return
+     */
+    public synchronized List<String> releaseExpired() {
+        List<String> ready = new ArrayList<>();
+        if (waitingSince != 0 && System.currentTimeMillis() - waitingSince >= webSocketProperties.getGapWaitMillis()) {
+            long next = pending.firstKey();
+            log.warn("订单消息序号{}~{}等待超时，视为丢失", deliveredSeq + 1, next - 1);
+            deliveredSeq = next - 1;
+            drain(ready);
+        }
+        return ready;
+    }
+
+    /**
+     * 按顺序取出连续的暂存消息
+     * @param ready
+     */
+    private void drain(List<String> ready) {
+        Map.Entry<Long, String> entry;
+        while ((entry = pending.firstEntry()) != null && entry.getKey() == deliveredSeq + 1) {
+            pending.pollFirstEntry();
+            store(entry.getKey(), entry.getValue());
+            ready.add(entry.getValue());
+            deliveredSeq = entry.getKey();
+        }
+        if (pending.isEmpty()) {
+            waitingSince = 0;
+        } else if (waitingSince == 0 || !ready.isEmpty()) {
+            waitingSince = System.currentTimeMillis();
+        }
+    }
+
+    private void store(long seq, String message) {
+        int index = (int) (seq % sequences.length);
+        if (seq <= sequences[index]) {
+            return;
+        }
+        sequences[index] = seq;
+        messages[index] = message;
+    }
+
+    /**
+     * 查询序号大于lastSeq的已推送消息，按序号排列，暂存的消息之后会按顺序推送
+     * @param lastSeq 客户端最后收到的序号
+     * @return 需要补发的消息，断线期间的消息已经被覆盖或本节点没有收到过时返回null
+     */
+    public synchronized List<String> since(long lastSeq) {
+        //本节点重启后没有断线之前的消息
+        if (firstSeq == 0 || lastSeq + 1 < firstSeq) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        if (lastSeq >= deliveredSeq) {
+            return list;
+        }
+        //需要的最早一条已经不在数组中
+        if (deliveredSeq - lastSeq > sequences.length) {
+            return null;
+        }
+        for (long seq = lastSeq + 1; seq <= deliveredSeq; seq++) {
+            int index = (int) (seq % sequences.length);
+            //等待超时被跳过的序号没有消息
+            if (sequences[index] == seq) {
+                list.add(messages[index]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 已按顺序推送的最大序号
+     * @return
+     */
+    public synchronized long getLatestSeq() {
+        return deliveredSeq;
+    }
+}
@@ -0,0 +1,245 @@
+package com.sky.websocket;
+
+import com.alibaba.fastjson.JSON;
+import com.sky.constant.MessageConstant;
+import com.sky.entity.Orders;
+import com.sky.exception.OrderBusinessException;
+import com.sky.mapper.OrderMapper;
+import com.sky.properties.OrderProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 催单限流：同一个订单在一个时间窗口内第一次催单立即推送，之后的催单只计数，窗口结束时合并为一次推送并带上次数
+ * 本节点用计数器合并，只在窗口开始时查询一次订单；集群内用redis窗口锁保证每个窗口只有一个节点推送
+ */
+@Component
+@Slf4j
+public class OrderRemindCoalescer {
+
+    //催单次数的key前缀，各节点窗口结束时累加
+    private static final String COUNT_KEY_PREFIX = "order_remind_count:";
+
+    //窗口锁的key前缀，同一个订单一个窗口内只推送一次
+    private static final String LOCK_KEY_PREFIX = "order_remind_lock:";
+
+    //累加催单次数后尝试获取窗口锁：获取成功返回累计次数并清零，没有次数返回0，锁被占用返回锁剩余毫秒数的相反数
+    private static final DefaultRedisScript<Long> FLUSH_SCRIPT = new DefaultRedisScript<>(
+            "local total = redis.call('incrby', KEYS[1], ARGV[1]) " +
+            "if total <= 0 then redis.call('del', KEYS[1]) return 0 end " +
+            "if redis.call('set', KEYS[2], '1', 'NX', 'PX', ARGV[2]) then " +
+            "redis.call('del', KEYS[1]) return total end " +
+            "redis.call('pexpire', KEYS[1], ARGV[3]) " +
+            "return -math.max(redis.call('pttl', KEYS[2]), 1)",
+            Long.class);
+
+    //已经结束的窗口，催单线程遇到时重新创建
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private OrderMapper orderMapper;
+    @Autowired
+    private WebSocketBroadcaster webSocketBroadcaster;
+    @Autowired
+    private OrderProperties orderProperties;
+
+    //本节点每个订单当前的窗口
+    private final ConcurrentMap<Long, Window> windows = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-remind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 记录一次催单：窗口内的第一次催单校验订单并尝试立即推送，之后的催单只计数
+     * @param orderId
+     * @param userId 催单的用户，只能催自己的订单
+     */
+    public void remind(Long orderId, Long userId) {
+        while (true) {
+            Window window = windows.get(orderId);
+            if (window != null) {
+                //窗口由订单所属的用户打开，其他用户不能借已有的窗口催单
+                if (!window.userId.equals(userId)) {
+                    throw new OrderBusinessException(MessageConstant.ORDER_NOT_FOUND);
+                }
+                if (window.count.getAndIncrement() >= 0) {
+                    return;
+                }
+                //窗口刚刚结束，换一个新的
+                windows.remove(orderId, window);
+                continue;
+            }
+
+            Window created = new Window(userId);
+            if (windows.putIfAbsent(orderId, created) == null) {
+                open(orderId, userId, created);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 开始一个窗口：查询并校验订单，抢到集群内的窗口锁时立即推送，否则计入窗口结束时的合并推送
+     * @param orderId
+     * @param userId
+     * @param window
+     */
+    private void open(Long orderId, Long userId, Window window) {
+        Orders orders;
+        try {
+            orders = orderMapper.getByOrderId(orderId);
+        } catch (RuntimeException e) {
+            windows.remove(orderId, window);
+            throw e;
+        }
+        if (orders == null || !orders.getUserId().equals(userId)) {
+            windows.remove(orderId, window);
+            throw new OrderBusinessException(MessageConstant.ORDER_NOT_FOUND);
+        }
+        window.orderNumber = orders.getNumber();
+
+        long windowMillis = orderProperties.getRemindWindowSeconds() * 1000;
+        if (tryLead(orderId, windowMillis)) {
+            push(orderId, window.orderNumber, 1);
+        } else {
+            window.count.incrementAndGet();
+        }
+        schedule(() -> flush(orderId, window), windowMillis);
+    }
+
+    /**
+     * 获取集群内的窗口锁，redis不可用时按本节点的窗口直接推送
+     * @param orderId
+     * @param windowMillis
+     * @return
+     */
+    private boolean tryLead(Long orderId, long windowMillis) {
+        try {
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_KEY_PREFIX + orderId, "1",
+                    windowMillis, TimeUnit.MILLISECONDS);
+            return Boolean.TRUE.equals(locked);
+        } catch (Exception e) {
+            log.error("获取催单窗口锁失败，直接推送：{}", orderId, e);
+            return true;
+        }
+    }
+
+    /**
+     * 窗口结束，取出本节点在窗口内的催单次数并合并到redis
+     * @param orderId
+     * @param window
+     */
+    private void flush(Long orderId, Window window) {
+        int number = window.count.getAndSet(CLOSED);
+        windows.remove(orderId, window);
+        if (number > 0) {
+            merge(orderId, window.orderNumber, number);
+        }
+    }
+
+    /**
+     * 把催单次数累加到redis，抢到窗口锁时推送，否则等锁过期后再尝试
+     * @param orderId
+     * @param orderNumber
+     * @param number
+     */
+    private void merge(Long orderId, String orderNumber, int number) {
+        long windowMillis = orderProperties.getRemindWindowSeconds() * 1000;
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(FLUSH_SCRIPT,
+                    Arrays.asList(COUNT_KEY_PREFIX + orderId, LOCK_KEY_PREFIX + orderId),
+                    String.valueOf(number), String.valueOf(windowMillis), String.valueOf(windowMillis * 2));
+        } catch (Exception e) {
+            //redis不可用时只按本节点的次数推送
+            log.error("合并催单次数失败，直接推送：{}", orderId, e);
+            push(orderId, orderNumber, number);
+            return;
+        }
+
+        if (result == null || result == 0) {
+            return;
+        }
+        if (result > 0) {
+            push(orderId, orderNumber, result);
+        } else {
+            //其他节点刚推送过，次数已经留在redis中，锁过期后由最先重试的节点推送
+            schedule(() -> merge(orderId, orderNumber, 0), -result);
+        }
+    }
+
+    /**
+     * 推送催单提醒
+     * @param orderId
+     * @param orderNumber
+     * @param number 距离上一次推送的催单次数
+     */
+    private void push(Long orderId, String orderNumber, long number) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("type", 2);
+        map.put("orderId", orderId);
+        map.put("content", "订单号：" + orderNumber);
+        map.put("count", number);
+
+        //通过websocket向客户端浏览器推送消息
+        webSocketBroadcaster.broadcast(JSON.toJSONString(map));
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            executor.schedule(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("推送催单提醒失败", e);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("催单合并线程已关闭");
+        }
+    }
+
+    /**
+     * 本节点一个订单的催单窗口
+     */
+    private static class Window {
+
+        //打开窗口的用户
+        private final Long userId;
+
+        //窗口内还没有推送的催单次数，窗口结束后为CLOSED
+        private final AtomicInteger count = new AtomicInteger();
+
+        //窗口开始时查询的订单号，推送时不再查询数据库
+        private volatile String orderNumber;
+
+        private Window(Long userId) {
+            this.userId = userId;
+        }
+    }
+}
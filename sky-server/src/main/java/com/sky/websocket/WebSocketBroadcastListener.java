@@ -0,0 +1,31 @@
+package com.sky.websocket;
+
+import com.alibaba.fastjson.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 监听WebSocket广播频道，把收到的一批消息按序号保存并推送给连接在本节点的客户端
+ */
+@Component
+@Slf4j
+public class WebSocketBroadcastListener implements MessageListener {
+
+    @Autowired
+    private WebSocketServer webSocketServer;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        List<String> batch = JSON.parseArray(new String(message.getBody(), StandardCharsets.UTF_8), String.class);
+        log.debug("收到WebSocket广播消息：{}条", batch.size());
+        for (String text : batch) {
+            webSocketServer.sendOrderEvent(JSON.parseObject(text).getLongValue("seq"), text);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.sky.websocket;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.sky.properties.WebSocketProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向集群内所有管理端推送消息：消息先发布到redis频道，每个节点收到后推送给连接在本节点的客户端
+ * 本节点的消息在一个时间窗口内合并为一次发布，高峰期大量来单提醒不会变成大量redis发布。
+ * 发布前通过redis自增为每条消息分配集群内递增的序号，客户端重连时按序号补发
+ */
+@Component
+@Slf4j
+public class WebSocketBroadcaster {
+
+    //订单消息序号的key
+    private static final String SEQUENCE_KEY = "websocket_seq";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private WebSocketServer webSocketServer;
+    @Autowired
+    private WebSocketProperties webSocketProperties;
+
+    //等待发布的消息
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "websocket-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        long interval = webSocketProperties.getBatchIntervalMillis();
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+        flush();
+    }
+
+    /**
+     * 推送给集群内所有客户端，在下一个时间窗口发布
+     * @param message
+     */
+    public void broadcast(String message) {
+        pending.offer(message);
+    }
+
+    /**
+     * 把等待中的消息分批发布到redis频道，发布失败时只推送给本节点的客户端
+     */
+    private void flush() {
+        while (!pending.isEmpty()) {
+            List<String> batch = new ArrayList<>();
+            String message;
+            while (batch.size() < webSocketProperties.getBatchSize() && (message = pending.poll()) != null) {
+                batch.add(message);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                //一次自增分配整批消息的序号
+                long seq = stringRedisTemplate.opsForValue().increment(SEQUENCE_KEY, batch.size()) - batch.size();
+                List<String> sequenced = new ArrayList<>(batch.size());
+                for (String text : batch) {
+                    JSONObject jsonObject = JSON.parseObject(text);
+                    jsonObject.put("seq", ++seq);
+                    sequenced.add(jsonObject.toJSONString());
+                }
+                stringRedisTemplate.convertAndSend(webSocketProperties.getBroadcastChannel(), JSON.toJSONString(sequenced));
+            } catch (Exception e) {
+                //没有序号的消息不会保存，客户端重连后无法补发
+                log.error("发布WebSocket消息失败，只推送给本节点的客户端", e);
+                batch.forEach(webSocketServer::sendToAllClient);
+            }
+        }
+    }
+}
@@ -1,33 +1,120 @@
 package com.sky.websocket;
 
+import com.alibaba.fastjson.JSON;
+import com.sky.properties.WebSocketProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+
+import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
+import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
-import java.util.Collection;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WebSocket服务
+ * 群发时只把消息放入每个客户端自己的队列，由发送线程通过异步接口逐条发送，业务线程不会被慢的客户端阻塞；
+ * 队列满或发送失败的客户端直接断开，由浏览器重新连接。
+ * 服务端定时发送ping，长时间没有收到pong或消息的连接（例如合上笔记本后的半开连接）会被清理。
+ * 订单消息带有全局序号，客户端重连时通过 /ws/{sid}?lastSeq=序号 只补发断线期间的消息
  */
 @Component
 @ServerEndpoint("/ws/{sid}")
+@Slf4j
 public class WebSocketServer {
 
-    //存放会话对象
-    private static Map<String, Session> sessionMap = new HashMap();
+    //每个客户端最多积压的消息数
+    private static final int QUEUE_CAPACITY = 100;
+
+    //单条消息的发送超时时间
+    private static final long SEND_TIMEOUT_MILLIS = 5000;
+
+    //tomcat阻塞发送（包括ping）的超时时间属性，默认20秒
+    private static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    //存放会话对象，连接的建立和断开在容器线程中执行，群发在业务线程中执行
+    private static final Map<String, Client> clientMap = new ConcurrentHashMap<>();
+
+    //发送失败（队列满、发送出错或超时）的次数
+    private static final AtomicLong sendFailureCount = new AtomicLong();
+
+    //因心跳超时或连接异常被清理的连接数
+    private static final AtomicLong reapedCount = new AtomicLong();
+
+    //每个客户端同一时间只有一条消息在发送，所以少量线程就可以服务所有客户端
+    private static final ExecutorService sendExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "websocket-send");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //心跳和关闭连接在tomcat中是阻塞写，使用单独的线程，半开的连接不会拖慢消息发送
+    private static final ExecutorService controlExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "websocket-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //订单消息类型：补发失败，客户端需要重新查询订单列表
+    private static final int TYPE_RELOAD = 3;
+
+    //最近的订单消息，容器为每个连接创建的实例不会注入，所以保存在静态变量中
+    private static OrderEventBuffer orderEventBuffer;
+
+    //只有spring管理的实例会注入，容器为每个连接创建的实例中为null，只在定时任务中使用
+    @Autowired
+    private WebSocketProperties webSocketProperties;
 
     /**
      * 连接建立成功调用的方法
      */
     @OnOpen
     public void onOpen(Session session, @PathParam("sid") String sid) {
-        System.out.println("客户端：" + sid + "建立连接");
-        sessionMap.put(sid, session);
+        log.info("客户端：{}建立连接", sid);
+        session.getAsyncRemote().setSendTimeout(SEND_TIMEOUT_MILLIS);
+        session.getUserProperties().put(BLOCKING_SEND_TIMEOUT, SEND_TIMEOUT_MILLIS);
+        Client client = new Client(sid, session);
+        Client old;
+        //加入连接和补发消息在同一把锁内完成，补发的消息和新的订单消息不会重复或乱序；锁内只入队，发送在锁外开始
+        synchronized (orderEventBuffer) {
+            old = clientMap.put(sid, client);
+            List<String> lastSeq = session.getRequestParameterMap().get("lastSeq");
+            if (lastSeq != null && !lastSeq.isEmpty()) {
+                replay(client, lastSeq.get(0));
+            }
+        }
+        startSending(client);
+        //同一个客户端重复连接时关闭旧的连接
+        if (old != null && old.session != session) {
+            disconnect(old, "重复连接");
+        }
+    }
+
+    @Autowired
+    public void setOrderEventBuffer(OrderEventBuffer orderEventBuffer) {
+        WebSocketServer.orderEventBuffer = orderEventBuffer;
     }
 
     /**
@@ -37,7 +124,36 @@ public class WebSocketServer {
      */
     @OnMessage
     public void onMessage(String message, @PathParam("sid") String sid) {
-        System.out.println("收到来自客户端：" + sid + "的信息:" + message);
+        log.info("收到来自客户端：{}的信息:{}", sid, message);
+        touch(sid);
+    }
+
+    /**
+     * 收到客户端对心跳的响应
+     *
+     * @param pong
+     * @param sid
+     */
+    @OnMessage
+    public void onPong(PongMessage pong, @PathParam("sid") String sid) {
+        touch(sid);
+    }
+
+    /**
+     * 连接出错时移除并关闭连接
+     *
+     * @param session
+     * @param error
+     * @param sid
+     */
+    @OnError
+    public void onError(Session session, Throwable error, @PathParam("sid") String sid) {
+        log.warn("客户端：{}的连接出错：{}", sid, error.getMessage());
+        Client client = clientMap.get(sid);
+        if (client != null && client.session == session) {
+            reapedCount.incrementAndGet();
+            disconnect(client, "连接出错");
+        }
     }
 
     /**
@@ -46,25 +162,277 @@ public class WebSocketServer {
      * @param sid
      */
     @OnClose
-    public void onClose(@PathParam("sid") String sid) {
-        System.out.println("连接断开:" + sid);
-        sessionMap.remove(sid);
+    public void onClose(Session session, @PathParam("sid") String sid) {
+        log.info("连接断开:{}", sid);
+        Client client = clientMap.get(sid);
+        //只移除当前会话，客户端可能已经用新的会话重新连接
+        if (client != null && client.session == session) {
+            clientMap.remove(sid, client);
+        }
+    }
+
+    /**
+     * 定时向所有客户端发送心跳，并清理超时没有响应或已经关闭的连接
+     * ping和关闭连接在tomcat中是阻塞发送，交给单独的线程执行，半开的连接不会阻塞其他定时任务
+     */
+    @Scheduled(fixedRateString = "${sky.websocket.heartbeat-interval-millis:30000}")
+    public void heartbeat() {
+        long deadline = System.currentTimeMillis() - webSocketProperties.getIdleTimeoutMillis();
+        for (Client client : clientMap.values()) {
+            if (!client.session.isOpen() || client.lastActiveTime < deadline) {
+                log.info("清理无响应的客户端：{}", client.sid);
+                reapedCount.incrementAndGet();
+                disconnect(client, "心跳超时");
+                continue;
+            }
+            execute(controlExecutor, () -> ping(client));
+        }
+        log.info("WebSocket在线连接：{}，累计发送失败：{}，累计清理连接：{}",
+                getOnlineCount(), getSendFailureCount(), getReapedCount());
+    }
+
+    /**
+     * 发送心跳，发送失败或超时时清理连接
+     * @param client
+     */
+    private static void ping(Client client) {
+        try {
+            client.session.getAsyncRemote().sendPing(ByteBuffer.allocate(0));
+        } catch (IOException | RuntimeException e) {
+            log.info("向客户端：{}发送心跳失败，清理连接", client.sid);
+            reapedCount.incrementAndGet();
+            disconnect(client, "心跳失败");
+        }
+    }
+
+    /**
+     * 当前节点的在线连接数
+     * @return
+     */
+    public int getOnlineCount() {
+        return clientMap.size();
+    }
+
+    /**
+     * 当前节点累计发送失败的次数
+     * @return
+     */
+    public long getSendFailureCount() {
+        return sendFailureCount.get();
+    }
+
+    /**
+     * 当前节点累计清理的连接数
+     * @return
+     */
+    public long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    /**
+     * 记录客户端最近一次活动的时间
+     * @param sid
+     */
+    private static void touch(String sid) {
+        Client client = clientMap.get(sid);
+        if (client != null) {
+            client.lastActiveTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 把客户端断线期间的订单消息放入队列，无法补发时通知客户端重新查询
+     * @param client
+     * @param lastSeq 客户端最后收到的序号
+     */
+    private static void replay(Client client, String lastSeq) {
+        List<String> messages;
+        try {
+            messages = orderEventBuffer.since(Long.parseLong(lastSeq));
+        } catch (NumberFormatException e) {
+            messages = null;
+        }
+        if (messages == null || messages.size() > QUEUE_CAPACITY) {
+            log.info("客户端：{}断线期间的消息无法补发，通知重新查询", client.sid);
+            Map<String, Object> map = new HashMap<>();
+            map.put("type", TYPE_RELOAD);
+            map.put("seq", orderEventBuffer.getLatestSeq());
+            map.put("content", "订单消息已过期，请刷新订单列表");
+            messages = Collections.singletonList(JSON.toJSONString(map));
+        } else {
+            log.info("客户端：{}重连，补发{}条消息", client.sid, messages.size());
+        }
+        client.queue.addAll(messages);
+    }
+
+    /**
+     * 群发一条带序号的订单消息，同时保存用于断线重连后补发
+     * 前面的序号还没有到达时暂不推送，等它们到达或等待超时后按顺序推送
+     * @param seq
+     * @param message
+     */
+    public void sendOrderEvent(long seq, String message) {
+        Set<Client> overflowed = new LinkedHashSet<>();
+        //锁内只计算可以推送的消息并放入各客户端的队列，断开积压的连接和开始发送都在锁外
+        synchronized (orderEventBuffer) {
+            for (String ready : orderEventBuffer.append(seq, message)) {
+                enqueue(ready, overflowed);
+            }
+        }
+        dispatch(overflowed);
+    }
+
+    /**
+     * 推送因等待缺失序号而暂存、已经等待超时的订单消息
+     */
+    @Scheduled(fixedDelayString = "${sky.websocket.gap-wait-millis:1000}")
+    public void releaseOrderEvents() {
+        Set<Client> overflowed = new LinkedHashSet<>();
+        synchronized (orderEventBuffer) {
+            for (String ready : orderEventBuffer.releaseExpired()) {
+                enqueue(ready, overflowed);
+            }
+        }
+        dispatch(overflowed);
     }
 
     /**
-     * 群发
+     * 群发，只负责把消息放入每个客户端的队列，不等待发送完成
      *
      * @param message
      */
     public void sendToAllClient(String message) {
-        Collection<Session> sessions = sessionMap.values();
-        for (Session session : sessions) {
-            try {
-                //服务器向客户端发送消息
-                session.getBasicRemote().sendText(message);
-            } catch (Exception e) {
-                e.printStackTrace();
+        Set<Client> overflowed = new LinkedHashSet<>();
+        enqueue(message, overflowed);
+        dispatch(overflowed);
+    }
+
+    /**
+     * 把消息放入每个客户端的队列，队列已满的客户端记录下来
+     * @param message
+     * @param overflowed
+     */
+    private static void enqueue(String message, Set<Client> overflowed) {
+        for (Client client : clientMap.values()) {
+            if (!client.queue.offer(message)) {
+                overflowed.add(client);
+            }
+        }
+    }
+
+    /**
+     * 断开消息积压的客户端，其余客户端开始发送队列中的消息
+     * @param overflowed
+     */
+    private static void dispatch(Set<Client> overflowed) {
+        for (Client client : overflowed) {
+            log.warn("客户端：{}积压的消息超过{}条，断开连接", client.sid, QUEUE_CAPACITY);
+            sendFailureCount.incrementAndGet();
+            disconnect(client, "消息积压");
+        }
+        for (Client client : clientMap.values()) {
+            if (!client.queue.isEmpty()) {
+                startSending(client);
+            }
+        }
+    }
+
+    /**
+     * 客户端没有正在发送的消息时，开始发送队列中的消息
+     * @param client
+     */
+    private static void startSending(Client client) {
+        if (client.sending.compareAndSet(false, true)) {
+            execute(() -> sendNext(client));
+        }
+    }
+
+    /**
+     * 发送队列中的下一条消息，发送完成后继续发送下一条，直到队列为空
+     * @param client
+     */
+    private static void sendNext(Client client) {
+        String message = client.queue.poll();
+        if (message == null) {
+            client.sending.set(false);
+            //清除标记之前可能有新消息入队
+            if (!client.queue.isEmpty()) {
+                startSending(client);
+            }
+            return;
+        }
+
+        try {
+            client.session.getAsyncRemote().sendText(message, result -> {
+                if (result.isOK()) {
+                    execute(() -> sendNext(client));
+                } else {
+                    log.warn("向客户端：{}发送消息失败，断开连接：{}", client.sid, result.getException().getMessage());
+                    sendFailureCount.incrementAndGet();
+                    disconnect(client, "发送失败");
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("向客户端：{}发送消息失败，断开连接：{}", client.sid, e.getMessage());
+            sendFailureCount.incrementAndGet();
+            disconnect(client, "发送失败");
+        }
+    }
+
+    private static void execute(Runnable task) {
+        execute(sendExecutor, task);
+    }
+
+    private static void execute(ExecutorService executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.warn("WebSocket线程池已关闭");
+        }
+    }
+
+    /**
+     * 移除客户端并丢弃还没有发送的消息，关闭连接交给单独的线程执行
+     * 关闭半开的连接是阻塞写，不能在群发的业务线程中执行
+     * @param client
+     * @param reason
+     */
+    private static void disconnect(Client client, String reason) {
+        clientMap.remove(client.sid, client);
+        client.queue.clear();
+        execute(controlExecutor, () -> close(client, reason));
+    }
+
+    private static void close(Client client, String reason) {
+        try {
+            if (client.session.isOpen()) {
+                client.session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, reason));
             }
+        } catch (IOException e) {
+            log.debug("关闭客户端：{}的连接失败", client.sid, e);
+        }
+    }
+
+    /**
+     * 客户端会话和待发送的消息
+     */
+    private static class Client {
+
+        private final String sid;
+
+        private final Session session;
+
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        //是否有消息正在发送，保证同一个会话同一时间只有一次异步发送
+        private final AtomicBoolean sending = new AtomicBoolean(false);
+
+        //最近一次收到消息或心跳响应的时间
+        private volatile long lastActiveTime = System.currentTimeMillis();
+
+        private Client(String sid, Session session) {
+            this.sid = sid;
+            this.session = session;
         }
     }
 
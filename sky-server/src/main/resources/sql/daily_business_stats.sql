@@ -0,0 +1,10 @@
+-- 营业数据日汇总表，由BusinessStatsTask每天凌晨计算已结束日期的数据
+create table if not exists daily_business_stats
+(
+    stat_date         date           not null comment '统计日期' primary key,
+    order_count       int            not null default 0 comment '订单数',
+    valid_order_count int            not null default 0 comment '有效订单数',
+    turnover          decimal(12, 2) not null default 0 comment '营业额',
+    new_users         int            not null default 0 comment '新增用户数',
+    update_time       datetime       null comment '更新时间'
+) comment '营业数据日汇总';
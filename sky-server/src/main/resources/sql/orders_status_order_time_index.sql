@@ -0,0 +1,3 @@
+-- 定时任务按状态和下单时间查找超时未支付、一直派送中的订单，启动时按状态加载待支付订单
+-- 没有这个索引时每次兜底检查都会扫描整个订单表
+create index idx_status_order_time on orders (status, order_time);
@@ -0,0 +1,25 @@
+-- 购物车中同一用户的同一件商品（菜品id、套餐id、口味）只保留一条记录，加减数量可以用一条语句原子完成
+-- 唯一索引中NULL互不相等，菜品没有套餐id、套餐没有菜品id和口味，所以用生成列把三列拼成非空的商品标识
+
+-- 合并、删除和生成列使用同一个商品标识表达式，口味为NULL和空串视为同一件商品
+
+-- 1. 合并已有的重复记录：数量累加到id最小的一条，再删除其余的
+update shopping_cart sc
+    join (select min(id) id, sum(number) total
+          from shopping_cart
+          group by user_id, concat(ifnull(dish_id, ''), ':', ifnull(setmeal_id, ''), ':', ifnull(dish_flavor, ''))
+          having count(*) > 1) dup on sc.id = dup.id
+set sc.number = dup.total;
+
+delete sc
+from shopping_cart sc
+         join shopping_cart keep on keep.user_id = sc.user_id
+    and concat(ifnull(keep.dish_id, ''), ':', ifnull(keep.setmeal_id, ''), ':', ifnull(keep.dish_flavor, ''))
+        = concat(ifnull(sc.dish_id, ''), ':', ifnull(sc.setmeal_id, ''), ':', ifnull(sc.dish_flavor, ''))
+    and keep.id < sc.id;
+
+-- 2. 增加商品标识和唯一索引
+alter table shopping_cart
+    add column item_key varchar(100) generated always as
+        (concat(ifnull(dish_id, ''), ':', ifnull(setmeal_id, ''), ':', ifnull(dish_flavor, ''))) stored comment '商品标识',
+    add unique key uk_user_item (user_id, item_key);